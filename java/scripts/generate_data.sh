@@ -0,0 +1,12 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+#generate data/orders.csv and data/itemStatus.csv
+#Usage: generate_data.sh <number of orders> [options, see java/src/DataGenerator.java]
+java -cp $DIR/../classes DataGenerator "$@" -data $DIR/../../data
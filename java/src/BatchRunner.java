@@ -0,0 +1,201 @@
+/*
+ * Headless command runner for the Cafe program
+ * ============================================
+ *
+ * Reads one operation per line and applies it without going through the
+ * interactive menus.  Fields are separated by ';', the same delimiter used
+ * by the files under data/.  Blank lines and lines starting with '#' are
+ * skipped.
+ *
+ *    createuser;<login>;<password>;<phone>
+ *    additem;<itemName>;<type>;<price>;<description>;<imageURL>
+ *    updateitem;<itemName>;<itemName|type|price|description|imageURL>;<value>
+ *    deleteitem;<itemName>
+ *    updatetype;<login>;<Manager|Employee|Customer>
+ *    placeorder;<login>;<itemName>
+ *    markpaid;<orderid>
+ *
+ * Consecutive commands that map to the same SQL statement are applied as
+ * one batch: the statement is prepared once and every command runs in a
+ * single transaction, though the pg73 driver still takes one round trip
+ * per command.  If a batch fails it is rolled back and its commands are
+ * replayed one at a time so that every line gets its own result.  Ctrl-C
+ * cancels the batch being applied and stops the run.
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class BatchRunner {
+
+   // largest number of commands applied in a single transaction
+   static final int MAX_BATCH = 500;
+
+   private final Cafe esql;
+
+   // SQL statement text and values of the commands currently being grouped
+   private String pendingSql = null;
+   private final List<List<String>> pendingParams = new ArrayList<List<String>>();
+   private final List<String> pendingLines = new ArrayList<String>();
+
+   private int ok = 0;
+   private int noop = 0;
+   private int failed = 0;
+   // set when Ctrl-C cancelled a statement; the rest of the script is skipped
+   private boolean cancelled = false;
+
+   private BatchRunner(Cafe esql){
+      this.esql = esql;
+   }
+
+   /*
+    * Runs every command read from script and prints a result per command
+    * followed by the totals and throughput.
+    **/
+   public static void run(Cafe esql, BufferedReader script) throws IOException {
+      Cafe.beginOperation("batch");
+      BatchRunner runner = new BatchRunner(esql);
+      long start = System.nanoTime();
+      int lineNo = 0;
+      String line;
+      while (!runner.cancelled && (line = script.readLine()) != null){
+         ++lineNo;
+         String trimmed = line.trim();
+         if (trimmed.isEmpty() || trimmed.startsWith("#"))
+            continue;
+         runner.add(lineNo, trimmed);
+      }//end while
+      runner.flush();
+      if (runner.cancelled)
+         System.out.println("Cancelled after line " + lineNo + ", the rest of the script was not run");
+      long elapsed = (System.nanoTime() - start) / 1000000;
+
+      int total = runner.ok + runner.noop + runner.failed;
+      double rate = elapsed > 0 ? total * 1000.0 / elapsed : total;
+      System.out.println(String.format(
+         "%d command(s): %d ok, %d matched no rows, %d failed in %d ms (%.0f ops/s)",
+         total, runner.ok, runner.noop, runner.failed, elapsed, rate));
+   }//end run
+
+   /*
+    * Translates one command line to its SQL statement and queues it,
+    * flushing the current batch first when the statement differs.
+    **/
+   private void add(int lineNo, String line){
+      String[] f = line.split(";", -1);
+      String cmd = f[0].trim().toLowerCase();
+      String label = "line " + lineNo + ": " + cmd;
+      String sql = null;
+      List<String> params = null;
+
+      if (cmd.equals("createuser") && f.length == 4){
+         sql = "INSERT INTO USERS (phoneNum, login, password, favItems, type) VALUES (?, ?, ?, '', 'Customer')";
+         params = Arrays.asList(f[3], f[1], f[2]);
+      }else if (cmd.equals("additem") && f.length == 6){
+         sql = "INSERT INTO MENU (itemName, type, price, description, imageURL) VALUES (?, ?, ?, ?, ?)";
+         params = Arrays.asList(f[1], f[2], f[3], f[4], f[5]);
+      }else if (cmd.equals("updateitem") && f.length == 4){
+         String column = menuColumn(f[2].trim());
+         if (column != null){
+            sql = "UPDATE MENU SET " + column + " = ? WHERE itemName = ?";
+            params = Arrays.asList(f[3], f[1]);
+         }//end if
+      }else if (cmd.equals("deleteitem") && f.length == 2){
+         sql = "DELETE FROM MENU WHERE itemName = ?";
+         params = Arrays.asList(f[1]);
+      }else if (cmd.equals("updatetype") && f.length == 3){
+         String type = f[2].trim();
+         if (type.equals("Manager") || type.equals("Employee") || type.equals("Customer")){
+            sql = "UPDATE USERS SET type = ? WHERE login = ?";
+            params = Arrays.asList(type, f[1]);
+         }//end if
+      }else if (cmd.equals("placeorder") && f.length == 3){
+         // same row PlaceOrder creates: unpaid, stamped now, priced from the menu
+         sql = "INSERT INTO ORDERS (login, paid, timeStampRecieved, total) SELECT ?, false, now(), price FROM MENU WHERE itemName = ?";
+         params = Arrays.asList(f[1], f[2]);
+      }else if (cmd.equals("markpaid") && f.length == 2){
+         sql = "UPDATE ORDERS SET paid = true WHERE orderid = ?";
+         params = Arrays.asList(f[1].trim());
+      }//end if
+
+      if (sql == null){
+         // report the commands queued before this line first, in script order
+         flush();
+         System.out.println(label + " FAILED: malformed command");
+         ++failed;
+         return;
+      }//end if
+      if (!sql.equals(pendingSql) || pendingParams.size() >= MAX_BATCH)
+         flush();
+      pendingSql = sql;
+      pendingParams.add(params);
+      pendingLines.add(label);
+   }//end add
+
+   /*
+    * Applies the queued commands as one batch and reports each result.
+    **/
+   private void flush(){
+      if (pendingParams.isEmpty())
+         return;
+      try{
+         int[] counts = esql.executeBatch(pendingSql, pendingParams);
+         for (int i = 0; i < counts.length; ++i)
+            report(pendingLines.get(i), counts[i]);
+      }catch (SQLException batchError){
+         // the batch was rolled back, replay it one command at a time
+         for (int i = 0; i < pendingParams.size(); ++i){
+            try{
+               if (cancelled || StatementWatch.isCancellation(batchError)){
+                  cancelled = true;
+                  System.out.println(pendingLines.get(i) + " cancelled");
+                  ++failed;
+                  continue;
+               }//end if
+               report(pendingLines.get(i), esql.executeUpdate(pendingSql, pendingParams.get(i)));
+            }catch (SQLException e){
+               if (StatementWatch.isCancellation(e)){
+                  cancelled = true;
+                  System.out.println(pendingLines.get(i) + " cancelled");
+               }else{
+                  System.out.println(pendingLines.get(i) + " FAILED: " + e.getMessage());
+               }//end if
+               ++failed;
+            }//end try
+         }//end for
+      }//end try
+      pendingSql = null;
+      pendingParams.clear();
+      pendingLines.clear();
+   }//end flush
+
+   private void report(String label, int count){
+      if (count == 0){
+         System.out.println(label + " matched no rows");
+         ++noop;
+      }else if (count < 0){
+         // the driver applied the command but did not report a row count
+         System.out.println(label + " ok");
+         ++ok;
+      }else{
+         System.out.println(label + " ok (" + count + " row(s))");
+         ++ok;
+      }//end if
+   }//end report
+
+   /*
+    * Maps an updateitem attribute name to its MENU column, or null.
+    **/
+   private static String menuColumn(String attribute){
+      String[] columns = {"itemName", "type", "price", "description", "imageURL"};
+      for (String column : columns)
+         if (column.equalsIgnoreCase(attribute))
+            return column;
+      return null;
+   }//end menuColumn
+
+}//end BatchRunner
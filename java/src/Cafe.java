@@ -14,15 +14,28 @@
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.IOException;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -34,6 +47,55 @@ public class Cafe {
    // reference to physical database connection.
    private Connection _connection = null;
 
+   // connection settings, kept to open the pooled connections on demand
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+
+   // pooled connections and the bounded executor behind the *Async methods.
+   // Pool size defaults to 4 and can be set with -Dcafe.pool.size=<n>
+   private ConnectionPool _pool = null;
+   private ExecutorService _executor = null;
+
+   // results shared by all terminals, e.g. the staff unpaid orders view, and
+   // the last result of each query kept for deadline fallback.  Time to live
+   // and size default to 30 seconds and 256 entries and can be set with
+   // -Dcafe.cache.ttl=<seconds> and -Dcafe.cache.size=<n>
+   private final QueryCache _cache = new QueryCache (
+      Integer.getInteger ("cafe.cache.ttl", 30) * 1000L,
+      Integer.getInteger ("cafe.cache.size", 256));
+   // cleared when the database has no SharedResult table or advisory locks
+   private volatile boolean _sharedResults = true;
+
+   // deadline of every statement, and how long it may wait for a lock.
+   // Default to 30 and 5 seconds and can be set with -Dcafe.timeout=<seconds>
+   // and -Dcafe.lock.timeout=<seconds>; -Dcafe.timeout.<operation>=<seconds>
+   // overrides the deadline of one operation, e.g. cafe.timeout.BrowseOrder
+   private final long _timeoutMillis = millisProperty ("cafe.timeout", 30);
+   private final long _lockTimeoutMillis = millisProperty ("cafe.lock.timeout", 5);
+
+   // statement_timeout last set on each connection, to only send it on change
+   private final Map<Connection, Long> _serverTimeouts = new WeakHashMap<Connection, Long>();
+
+   // outcome and latency of every statement, reported on exit
+   private final QueryMetrics _metrics = new QueryMetrics ();
+
+   // orders taken by PlaceOrder and not yet in the database.  Only used when
+   // -Dcafe.journal=<file> is set; -Dcafe.journal.size=<MB> sizes the file
+   private OrderJournal _journal = null;
+
+   // logins, phone numbers and types of every user, so LogIn and CreateUser
+   // can reject unknown logins and duplicates without a round trip.  Loaded
+   // by the menus; changes from other terminals are read from the change log
+   // every -Dcafe.users.refresh seconds (0 never), or without a log all users
+   // are reloaded every -Dcafe.users.reload seconds (0 never)
+   private UserDirectory _users = null;
+
+   // name of the operation (menu screen) the current thread is running
+   private static final ThreadLocal<String> _operation = new ThreadLocal<String>() {
+      protected String initialValue () { return "other"; }
+   };
+
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
@@ -51,19 +113,33 @@ public class Cafe {
    public Cafe(String dbname, String dbport, String user, String passwd) throws SQLException {
 
       System.out.print("Connecting to database...");
+      // constructs the connection URL
+      String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
       try{
-         // constructs the connection URL
-         String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
          System.out.println ("Connection URL: " + url + "\n");
 
          // obtain a physical connection
          this._connection = DriverManager.getConnection(url, user, passwd);
+         prepareSession (this._connection);
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
          System.out.println("Make sure you started postgres on this machine");
          System.exit(-1);
       }//end catch
+
+      String journal = System.getProperty ("cafe.journal");
+      if (journal != null){
+         try{
+            this._journal = new OrderJournal (this, journal,
+               Integer.getInteger ("cafe.journal.size", 64) * 1024 * 1024);
+         }catch (IOException e){
+            System.err.println ("Order journal disabled: " + e.getMessage ());
+         }//end try
+      }//end if
    }//end Cafe
 
    /**
@@ -71,19 +147,98 @@ public class Cafe {
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
     * @param sql the input SQL string
+    * @return the number of rows affected
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
+   public int executeUpdate (String sql) throws SQLException {
       // creates a statement object
       Statement stmt = this._connection.createStatement ();
+      StatementWatch watch = watch (this._connection, stmt);
+      try{
+         // issues the update instruction
+         int count = stmt.executeUpdate (sql);
+         watch.done ();
+         return count;
+      }catch (SQLException e){
+         throw watch.fail (e);
+      }finally{
+         // close the instruction
+         stmt.close ();
+      }//end try
+   }//end executeUpdate
 
-      // issues the update instruction
-      stmt.executeUpdate (sql);
-
-      // close the instruction
-      stmt.close ();
+   /**
+    * Method to execute a parameterised update SQL statement.  Each '?' in
+    * the statement is bound, in order, to the matching value of params.
+    *
+    * @param sql the input SQL string with '?' placeholders
+    * @param params the values bound to the placeholders
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeUpdate (String sql, List<String> params) throws SQLException {
+      PreparedStatement stmt = this._connection.prepareStatement (sql);
+      StatementWatch watch = watch (this._connection, stmt);
+      try{
+         for (int i = 0; i < params.size(); ++i)
+            stmt.setString (i + 1, params.get(i));
+         int count = stmt.executeUpdate ();
+         watch.done ();
+         return count;
+      }catch (SQLException e){
+         throw watch.fail (e);
+      }finally{
+         stmt.close ();
+      }//end try
    }//end executeUpdate
 
+   /**
+    * Method to execute the same parameterised update SQL statement once per
+    * row of params inside one transaction.  Either every row is applied or
+    * none is.  The statement is prepared once, but the pg73 driver still
+    * sends one execution (one round trip) per row.
+    *
+    * @param sql the input SQL string with '?' placeholders
+    * @param rows one list of placeholder values per execution
+    * @return the number of rows affected by each execution
+    * @throws java.sql.SQLException when the batch failed and was rolled back
+    */
+   public int[] executeBatch (String sql, List<List<String>> rows) throws SQLException {
+      return batch (this._connection, sql, rows);
+   }//end executeBatch
+
+   private int[] batch (Connection conn, String sql, List<List<String>> rows) throws SQLException {
+      PreparedStatement stmt = conn.prepareStatement (sql);
+      // set the deadline before the transaction starts, a rollback would undo it
+      StatementWatch watch = watch (conn, stmt);
+      // the pg73 driver opens transactions with SET AUTOCOMMIT, which servers
+      // since 7.4 reject, so the transaction is opened and closed here and
+      // the driver's autocommit is left alone
+      Statement tx = conn.createStatement ();
+      try{
+         tx.executeUpdate ("BEGIN");
+         for (List<String> params : rows){
+            for (int i = 0; i < params.size(); ++i)
+               stmt.setString (i + 1, params.get(i));
+            stmt.addBatch ();
+         }//end for
+         int[] counts = stmt.executeBatch ();
+         tx.executeUpdate ("COMMIT");
+         watch.done ();
+         return counts;
+      }catch (SQLException e){
+         try{
+            tx.executeUpdate ("ROLLBACK");
+         }catch (SQLException rollbackError){
+            // ignored, a lost connection rolls back on the server.
+         }//end try
+         throw watch.fail (e);
+      }finally{
+         stmt.close ();
+         tx.close ();
+      }//end try
+   }//end batch
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and outputs the results to
@@ -96,10 +251,27 @@ public class Cafe {
    public int executeQueryAndPrintResult (String query) throws SQLException {
       // creates a statement object
       Statement stmt = this._connection.createStatement ();
+      StatementWatch watch = watch (this._connection, stmt);
+      try{
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery (query);
 
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+         int rowCount = printResult (rs);
+         watch.done ();
+         return rowCount;
+      }catch (SQLException e){
+         throw watch.fail (e);
+      }finally{
+         stmt.close ();
+      }//end try
+   }//end executeQuery
 
+   /*
+    * Outputs every row of a result set to standard out, preceded by a
+    * header line with the column names when there is at least one row.
+    * @return the number of rows printed
+    **/
+   private static int printResult (ResultSet rs) throws SQLException {
       /*
        ** obtains the metadata object for the returned result set.  The metadata
        ** contains row and column info.
@@ -123,9 +295,8 @@ public class Cafe {
          System.out.println ();
          ++rowCount;
       }//end while
-      stmt.close ();
       return rowCount;
-   }//end executeQuery
+   }//end printResult
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
@@ -137,12 +308,30 @@ public class Cafe {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      return queryAndReturnResult (this._connection, query);
+   }//end executeQueryAndReturnResult
 
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+   private List<List<String>> queryAndReturnResult (Connection conn, String query) throws SQLException {
+      // creates a statement object
+      Statement stmt = conn.createStatement ();
+      StatementWatch watch = watch (conn, stmt);
+      try{
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery (query);
+         List<List<String>> result = readResult (rs);
+         watch.done ();
+         return result;
+      }catch (SQLException e){
+         throw watch.fail (e);
+      }finally{
+         stmt.close ();
+      }//end try
+   }//end queryAndReturnResult
 
+   /*
+    * Saves every row of a result set as a list of attribute values.
+    **/
+   private static List<List<String>> readResult (ResultSet rs) throws SQLException {
       /*
        ** obtains the metadata object for the returned result set.  The metadata
        ** contains row and column info.
@@ -160,9 +349,8 @@ public class Cafe {
 			record.add(rs.getString (i));
         result.add(record);
       }//end while
-      stmt.close ();
       return result;
-   }//end executeQueryAndReturnResult
+   }//end readResult
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
@@ -173,20 +361,30 @@ public class Cafe {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
-
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
-
-       int rowCount = 0;
+       return query (this._connection, query);
+   }
 
-       // iterates through the result set and count nuber of results.
-       while (rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
+   private int query (Connection conn, String query) throws SQLException {
+       // creates a statement object
+       Statement stmt = conn.createStatement ();
+       StatementWatch watch = watch (conn, stmt);
+       try{
+          // issues the query instruction
+          ResultSet rs = stmt.executeQuery (query);
+
+          int rowCount = 0;
+
+          // iterates through the result set and count nuber of results.
+          while (rs.next()){
+             rowCount++;
+          }//end while
+          watch.done ();
+          return rowCount;
+       }catch (SQLException e){
+          throw watch.fail (e);
+       }finally{
+          stmt.close ();
+       }//end try
    }
 
    /**
@@ -200,17 +398,557 @@ public class Cafe {
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
 	Statement stmt = this._connection.createStatement ();
-
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
+	StatementWatch watch = watch (this._connection, stmt);
+	try{
+		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
+		int value = rs.next() ? rs.getInt(1) : -1;
+		watch.done ();
+		return value;
+	}catch (SQLException e){
+		throw watch.fail (e);
+	}finally{
+		stmt.close ();
+	}//end try
    }
 
+   /**
+    * Method to execute a parameterised query and output the results to
+    * standard out, served from the results shared by all terminals while a
+    * recent one for the same query and parameters exists.  Concurrent
+    * misses, from any terminal, run the query only once.
+    *
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders
+    * @param tables the tables the query reads, used for invalidation
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndPrintCachedResult (final String query, final List<String> params, final String... tables) throws SQLException {
+      QueryCache.Result result;
+      boolean fallback = false;
+      try{
+         result = loadCachedResult (query, params, tables);
+      }catch (SQLTimeoutException e){
+         // degrade to the last result we have, however old, rather than nothing
+         result = _cache.getStale (query, params);
+         if (result == null)
+            throw e;
+         _metrics.count (_operation.get (), QueryMetrics.FALLBACK);
+         System.out.println (String.format ("(%s, showing cached result %.1f s old)",
+            e.getMessage (), result.age () / 1000.0));
+         fallback = true;
+      }//end try
+
+      if (!fallback && result.age () > 0)
+         System.out.println (String.format ("(cached result, %.1f s old)", result.age () / 1000.0));
+      return printCached (result);
+   }//end executeQueryAndPrintCachedResult
+
+   /**
+    * Method to execute a parameterised query and output the results to
+    * standard out.  The query always runs; its result is kept so that when
+    * a later run misses its deadline the last result can be shown instead.
+    *
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders
+    * @param tables the tables the query reads, used for invalidation
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndPrintResult (final String query, final List<String> params, final String... tables) throws SQLException {
+      QueryCache.Result result;
+      try{
+         result = await (submit (new PooledCall<QueryCache.Result>() {
+            QueryCache.Result call (Connection conn) throws SQLException {
+               return queryForResult (conn, query, params, tables);
+            }
+         }));
+         _cache.remember (query, params, result);
+      }catch (SQLTimeoutException e){
+         result = _cache.getStale (query, params);
+         if (result == null)
+            throw e;
+         _metrics.count (_operation.get (), QueryMetrics.FALLBACK);
+         System.out.println (String.format ("(%s, showing cached result %.1f s old)",
+            e.getMessage (), result.age () / 1000.0));
+      }//end try
+      return printCached (result);
+   }//end executeQueryAndPrintResult
+
+   private static int printCached (QueryCache.Result result){
+      if (!result.rows.isEmpty ()){
+         for (String column : result.columns)
+            System.out.print (column + "\t");
+         System.out.println ();
+      }//end if
+      for (List<String> record : result.rows){
+         for (String value : record)
+            System.out.print (value + "\t");
+         System.out.println ();
+      }//end for
+      return result.rows.size ();
+   }//end printCached
+
+   private QueryCache.Result loadCachedResult (final String query, final List<String> params, final String[] tables) throws SQLException {
+      QueryCache.Result result = await (submit (new PooledCall<QueryCache.Result>() {
+         QueryCache.Result call (Connection conn) throws SQLException {
+            if (!_sharedResults)
+               return queryForResult (conn, query, params, tables);
+            try{
+               return loadSharedResult (conn, query, params, tables);
+            }catch (SQLException e){
+               String message = String.valueOf (e.getMessage ()).toLowerCase ();
+               if (!message.contains ("sharedresult") && !message.contains ("pg_advisory"))
+                  throw e;
+               // not deployed on this database: every terminal runs the query
+               _sharedResults = false;
+               System.err.println ("Shared query results disabled: " + e.getMessage ());
+               return queryForResult (conn, query, params, tables);
+            }//end try
+         }
+      }));
+      _cache.remember (query, params, result);
+      return result;
+   }//end loadCachedResult
+
+   /*
+    * Serves a result from SharedResult, or runs the query and shares it.
+    * Misses on the same key from any terminal wait on one advisory lock, so
+    * only the first runs the query.
+    **/
+   private QueryCache.Result loadSharedResult (Connection conn, String query, List<String> params, String[] tables) throws SQLException {
+      String key = QueryCache.sharedKey (query, params);
+      QueryCache.Result result = readSharedResult (conn, key, tables);
+      if (result != null){
+         _cache.hit (result.age ());
+         return result;
+      }//end if
+      long lock = QueryCache.lockId (key);
+      sharedStatement (conn, "SELECT pg_advisory_lock(" + lock + ")");
+      try{
+         result = readSharedResult (conn, key, tables);
+         if (result != null){
+            _cache.waited ();
+            return result;
+         }//end if
+         result = queryForResult (conn, query, params, tables);
+         sharedStatement (conn, "DELETE FROM SharedResult WHERE cacheKey = ?", key);
+         sharedStatement (conn, "INSERT INTO SharedResult (cacheKey, readsTables, loadedAt, result) VALUES (?, ?, now(), ?)",
+            key, QueryCache.readsTables (tables), QueryCache.encode (result));
+         _cache.refreshed ();
+         return result;
+      }finally{
+         try{
+            sharedStatement (conn, "SELECT pg_advisory_unlock(" + lock + ")");
+         }catch (SQLException e){
+            // the connection is gone, and the lock with it.
+         }//end try
+      }//end try
+   }//end loadSharedResult
+
+   private QueryCache.Result readSharedResult (Connection conn, String key, String[] tables) throws SQLException {
+      List<List<String>> rows = sharedStatement (conn,
+         "SELECT result, extract(epoch from now() - loadedAt) FROM SharedResult WHERE cacheKey = ? " +
+         "AND loadedAt > now() - interval '" + _cache.ttlMillis () + " milliseconds'", key);
+      if (rows.isEmpty ())
+         return null;
+      long age = Math.max (0, (long) (Double.parseDouble (rows.get(0).get(1)) * 1000));
+      return QueryCache.decode (rows.get(0).get(0), tables, age);
+   }//end readSharedResult
+
+   private List<List<String>> sharedStatement (Connection conn, String sql, String... params) throws SQLException {
+      PreparedStatement stmt = conn.prepareStatement (sql);
+      StatementWatch watch = watch (conn, stmt);
+      try{
+         for (int i = 0; i < params.length; ++i)
+            stmt.setString (i + 1, params[i]);
+         List<List<String>> rows = stmt.execute () ? readResult (stmt.getResultSet ()) : new ArrayList<List<String>>();
+         watch.done ();
+         return rows;
+      }catch (SQLException e){
+         throw watch.fail (e);
+      }finally{
+         stmt.close ();
+      }//end try
+   }//end sharedStatement
+
+   private QueryCache.Result queryForResult (Connection conn, String query, List<String> params, String[] tables) throws SQLException {
+      PreparedStatement stmt = conn.prepareStatement (query);
+      StatementWatch watch = watch (conn, stmt);
+      try{
+         for (int i = 0; i < params.size(); ++i)
+            stmt.setString (i + 1, params.get(i));
+         ResultSet rs = stmt.executeQuery ();
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         List<String> columns = new ArrayList<String>();
+         for (int i = 1; i <= rsmd.getColumnCount (); ++i)
+            columns.add (rsmd.getColumnName (i));
+         QueryCache.Result result = new QueryCache.Result (columns, readResult (rs), tables);
+         watch.done ();
+         return result;
+      }catch (SQLException e){
+         throw watch.fail (e);
+      }finally{
+         stmt.close ();
+      }//end try
+   }//end queryForResult
+
+   /**
+    * Drops the cached query results that read a table.  Called after
+    * writing to that table.
+    *
+    * @param table the table that was written
+    */
+   public void invalidate (String table) {
+      _cache.invalidate (table);
+   }//end invalidate
+
+   /**
+    * Asynchronous variant of executeQueryAndReturnResult.  The query runs on
+    * a pooled connection so that independent lookups can overlap.
+    *
+    * @param query the input query string
+    * @return the pending query result as a list of records
+    */
+   public Future<List<List<String>>> executeQueryAndReturnResultAsync (final String query) {
+      return submit (new PooledCall<List<List<String>>>() {
+         List<List<String>> call (Connection conn) throws SQLException {
+            return queryAndReturnResult (conn, query);
+         }
+      });
+   }//end executeQueryAndReturnResultAsync
+
+   /**
+    * Asynchronous variant of executeQueryAndReturnResult for a
+    * parameterised query.  Each '?' in the query is bound, in order, to the
+    * matching value of params.
+    *
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders
+    * @return the pending query result as a list of records
+    */
+   public Future<List<List<String>>> executeQueryAndReturnResultAsync (final String query, final List<String> params) {
+      return submit (new PooledCall<List<List<String>>>() {
+         List<List<String>> call (Connection conn) throws SQLException {
+            PreparedStatement stmt = conn.prepareStatement (query);
+            StatementWatch watch = watch (conn, stmt);
+            try{
+               for (int i = 0; i < params.size(); ++i)
+                  stmt.setString (i + 1, params.get(i));
+               List<List<String>> result = readResult (stmt.executeQuery ());
+               watch.done ();
+               return result;
+            }catch (SQLException e){
+               throw watch.fail (e);
+            }finally{
+               stmt.close ();
+            }//end try
+         }
+      });
+   }//end executeQueryAndReturnResultAsync
+
+   /**
+    * Asynchronous variant of executeQuery.  The query runs on a pooled
+    * connection so that independent lookups can overlap.
+    *
+    * @param query the input query string
+    * @return the pending number of rows returned
+    */
+   public Future<Integer> executeQueryAsync (final String query) {
+      return submit (new PooledCall<Integer>() {
+         Integer call (Connection conn) throws SQLException {
+            return query (conn, query);
+         }
+      });
+   }//end executeQueryAsync
+
+   /**
+    * Asynchronous variant of executeUpdate.  The statement runs, and commits,
+    * on a pooled connection.
+    *
+    * @param sql the input SQL string
+    * @return the pending number of rows affected
+    */
+   public Future<Integer> executeUpdateAsync (final String sql) {
+      return submit (new PooledCall<Integer>() {
+         Integer call (Connection conn) throws SQLException {
+            Statement stmt = conn.createStatement ();
+            StatementWatch watch = watch (conn, stmt);
+            try{
+               int count = stmt.executeUpdate (sql);
+               watch.done ();
+               return count;
+            }catch (SQLException e){
+               throw watch.fail (e);
+            }finally{
+               stmt.close ();
+            }//end try
+         }
+      });
+   }//end executeUpdateAsync
+
+   /**
+    * Asynchronous variant of executeBatch.  The batch runs, and commits as
+    * one transaction, on a pooled connection.
+    *
+    * @param sql the input SQL string with '?' placeholders
+    * @param rows one list of placeholder values per execution
+    * @return the pending number of rows affected by each execution
+    */
+   public Future<int[]> executeBatchAsync (final String sql, final List<List<String>> rows) {
+      return submit (new PooledCall<int[]>() {
+         int[] call (Connection conn) throws SQLException {
+            return batch (conn, sql, rows);
+         }
+      });
+   }//end executeBatchAsync
+
+   /**
+    * Waits for an asynchronous call and returns its value, rethrowing the
+    * SQLException it failed with.
+    *
+    * @param pending the value returned by one of the *Async methods
+    * @return the result of the call
+    * @throws java.sql.SQLException when the call failed
+    */
+   public static <T> T await (Future<T> pending) throws SQLException {
+      try{
+         return pending.get ();
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         pending.cancel (true);
+         throw new SQLException ("Interrupted while waiting for the database");
+      }catch (ExecutionException e){
+         Throwable cause = e.getCause ();
+         if (cause instanceof SQLException)
+            throw (SQLException) cause;
+         if (cause instanceof RuntimeException)
+            throw (RuntimeException) cause;
+         throw new SQLException (cause);
+      }//end try
+   }//end await
+
+   /**
+    * Method to send several SQL statements to the DBMS in a single round
+    * trip and output the result of the last one to standard out.  The
+    * statements run in order on this session's connection, so a later
+    * statement sees the effect of an earlier one (e.g. currval).  Only the
+    * last statement may be a query: the pg73 driver cannot return more
+    * than one result set per round trip.
+    *
+    * @param sql the statements to run, in order; only the last is a query
+    * @return the number of rows returned by the last statement
+    * @throws java.sql.SQLException when any statement failed
+    */
+   public int executePipelineAndPrintResult (String... sql) throws SQLException {
+      Statement stmt = this._connection.createStatement ();
+      StatementWatch watch = watch (this._connection, stmt);
+      try{
+         stmt.execute (joinStatements (sql));
+         int rowCount = 0;
+         do{
+            // read each result before moving on, getMoreResults closes it
+            ResultSet rs = stmt.getResultSet ();
+            if (rs != null)
+               rowCount = printResult (rs);
+         }while (stmt.getMoreResults () || stmt.getUpdateCount () != -1);
+         watch.done ();
+         return rowCount;
+      }catch (SQLException e){
+         throw watch.fail (e);
+      }finally{
+         stmt.close ();
+      }//end try
+   }//end executePipelineAndPrintResult
+
+   private static String joinStatements (String[] sql){
+      StringBuilder joined = new StringBuilder ();
+      for (String s : sql){
+         if (joined.length () > 0)
+            joined.append ("; ");
+         joined.append (s);
+      }//end for
+      return joined.toString ();
+   }//end joinStatements
+
+   /*
+    * A unit of work that runs on a connection borrowed from the pool.
+    **/
+   private abstract static class PooledCall<T> {
+      abstract T call (Connection conn) throws SQLException;
+   }//end PooledCall
+
+   private <T> Future<T> submit (final PooledCall<T> work){
+      ExecutorService executor;
+      final ConnectionPool pool;
+      synchronized (this){
+         if (this._executor == null){
+            int size = Integer.getInteger ("cafe.pool.size", 4);
+            this._pool = new ConnectionPool (_url, _user, _passwd, size) {
+               protected void prepare (Connection conn) throws SQLException {
+                  prepareSession (conn);
+               }
+            };
+            // bounded queue; when it is full the caller runs the work itself
+            ThreadPoolExecutor tpe = new ThreadPoolExecutor (size, size,
+               60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(size * 16),
+               new ThreadPoolExecutor.CallerRunsPolicy ());
+            tpe.allowCoreThreadTimeOut (true);
+            this._executor = tpe;
+         }//end if
+         executor = this._executor;
+         pool = this._pool;
+      }//end synchronized
+      // the work counts toward, and gets the deadline of, the caller's
+      // operation, and Ctrl-C cancels it when it cancels the caller's
+      final String operation = _operation.get ();
+      final Thread owner = StatementWatch.owner ();
+      return executor.submit (new Callable<T>() {
+         public T call () throws SQLException {
+            _operation.set (operation);
+            StatementWatch.runOnBehalfOf (owner);
+            Connection conn = pool.borrow ();
+            boolean broken = false;
+            try{
+               return work.call (conn);
+            }catch (SQLException e){
+               broken = ConnectionPool.isBroken (e);
+               throw e;
+            }finally{
+               // a connection lost e.g. to a server restart is replaced
+               if (broken)
+                  pool.discard (conn);
+               else
+                  pool.release (conn);
+            }//end try
+         }
+      });
+   }//end submit
+
+   /**
+    * Names the operation the current thread is running.  Statements are
+    * counted per operation and get its deadline, -Dcafe.timeout.<name>
+    * when set and -Dcafe.timeout otherwise.
+    *
+    * @param name the operation, e.g. the menu screen being shown
+    */
+   public static void beginOperation (String name) {
+      _operation.set (name);
+   }//end beginOperation
+
+   /*
+    * Starts the deadline of a statement about to run on conn, first moving
+    * the server side statement_timeout to the operation's deadline.
+    **/
+   private StatementWatch watch (Connection conn, Statement stmt) throws SQLException {
+      String operation = _operation.get ();
+      long timeout = millisProperty ("cafe.timeout." + operation, _timeoutMillis / 1000.0);
+      Long current;
+      synchronized (_serverTimeouts){
+         current = _serverTimeouts.get (conn);
+      }//end synchronized
+      if (current == null || current.longValue () != timeout){
+         Statement set = conn.createStatement ();
+         try{
+            set.executeUpdate ("SET statement_timeout = " + timeout);
+         }finally{
+            set.close ();
+         }//end try
+         synchronized (_serverTimeouts){
+            _serverTimeouts.put (conn, timeout);
+         }//end synchronized
+      }//end if
+      return StatementWatch.start (stmt, operation, timeout, _metrics);
+   }//end watch
+
+   /*
+    * Applies the session settings to a newly opened connection.
+    **/
+   private void prepareSession (Connection conn) throws SQLException {
+      Statement stmt = conn.createStatement ();
+      try{
+         stmt.executeUpdate ("SET lock_timeout = " + _lockTimeoutMillis);
+      }catch (SQLException e){
+         // servers before 9.3 have no lock_timeout, statement_timeout still applies.
+      }finally{
+         stmt.close ();
+      }//end try
+   }//end prepareSession
+
+   private static long millisProperty (String name, double defaultSeconds){
+      try{
+         return (long) (Double.parseDouble (System.getProperty (name, String.valueOf (defaultSeconds))) * 1000);
+      }catch (NumberFormatException e){
+         return (long) (defaultSeconds * 1000);
+      }//end try
+   }//end millisProperty
+
+   /**
+    * Takes an order through the local order journal when one is configured.
+    * The order is written to the database in the background.
+    *
+    * @param login the customer placing the order
+    * @param item the item ordered
+    * @return the order's intake key, or null when there is no journal
+    * @throws java.io.IOException when the journal is full or not writable
+    */
+   public String journalOrder (String login, String item) throws IOException {
+      if (this._journal == null)
+         return null;
+      return this._journal.append (login, item);
+   }//end journalOrder
+
+   /**
+    * Loads the user directory and starts its periodic refresh.  Without a
+    * directory the menus check logins and duplicates in the database.
+    */
+   public void loadUserDirectory (){
+      try{
+         this._users = UserDirectory.load (this, millisProperty ("cafe.users.refresh", 10),
+            millisProperty ("cafe.users.reload", 3600));
+         System.out.println (this._users.stats ());
+      }catch (SQLException e){
+         System.err.println ("User directory disabled: " + e.getMessage ());
+      }//end try
+   }//end loadUserDirectory
+
+   /**
+    * @return the user directory, or null when it is not loaded
+    */
+   public UserDirectory users (){
+      return this._users;
+   }//end users
+
+   /**
+    * Method to output the statement outcomes and latencies, and the query
+    * cache statistics (hit ratio, evictions, invalidations and the age of
+    * the results served) if it was used.
+    */
+   public void reportStats(){
+      if (_metrics.isUsed ())
+         System.out.println (_metrics.report ());
+      if (_cache.isUsed ())
+         System.out.println (_cache.stats ());
+      if (_journal != null)
+         System.out.println (_journal.stats ());
+      if (_users != null)
+         System.out.println (_users.stats ());
+   }//end reportStats
+
    /**
     * Method to close the physical connection if it is open.
     */
    public void cleanup(){
+      // give the journal a few seconds to write the pending orders; the
+      // rest are written the next time the program starts
+      if (this._journal != null)
+         this._journal.close (5000);
+      synchronized (this){
+         if (this._executor != null){
+            this._executor.shutdownNow ();
+            this._pool.close ();
+         }//end if
+      }//end synchronized
       try{
          if (this._connection != null){
             this._connection.close ();
@@ -226,16 +964,20 @@ public class Cafe {
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      if (args.length != 3 && args.length != 4) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             Cafe.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> [<script file> | -]");
          return;
       }//end if
 
-      Greeting();
+      // a fourth argument runs a command script instead of the menus
+      boolean batch = (args.length == 4);
+      if (!batch) Greeting();
+      // Ctrl-C cancels the running statement instead of freezing the terminal
+      StatementWatch.installInterruptHandler();
       Cafe esql = null;
       try{
          // use postgres JDBC driver.
@@ -247,6 +989,18 @@ public class Cafe {
          String user = args[2];
          esql = new Cafe (dbname, dbport, user, "");
 
+         if (batch) {
+            BufferedReader script = args[3].equals("-") ? in
+               : new BufferedReader(new FileReader(args[3]));
+            try{
+               BatchRunner.run(esql, script);
+            }finally{
+               if (script != in) script.close();
+            }//end try
+            return;
+         }//end if
+         esql.loadUserDirectory();
+
          boolean keepon = true;
          while(keepon) {
             // These are sample SQL statements
@@ -292,6 +1046,7 @@ public class Cafe {
          // make sure to cleanup the created table and close the connection.
          try{
             if(esql != null) {
+               esql.reportStats ();
                System.out.print("Disconnecting from database...");
                esql.cleanup ();
                System.out.println("Done\n\nBye !");
@@ -333,6 +1088,7 @@ public class Cafe {
     * Creates a new user with privided login, passowrd and phoneNum
     **/
    public static void CreateUser(Cafe esql){
+      beginOperation("CreateUser");
       try{
          System.out.print("\tEnter user login: ");
          String login = in.readLine();
@@ -344,9 +1100,21 @@ public class Cafe {
 	    String type="Customer";
 	    String favItems="";
 
+         // duplicates are rejected without a round trip
+         UserDirectory users = esql.users();
+         if (users != null && users.knowsLogin(login)) {
+            System.out.println ("Login is already taken!");
+            return;
+         }
+         if (users != null && users.knowsPhone(phone)) {
+            System.out.println ("Phone number is already registered!");
+            return;
+         }
+
 				 String query = String.format("INSERT INTO USERS (phoneNum, login, password, favItems, type) VALUES ('%s','%s','%s','%s','%s')", phone, login, password, favItems, type);
 
          esql.executeUpdate(query);
+         if (users != null) users.added(login, phone, type);
          System.out.println ("User successfully created!");
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -359,12 +1127,18 @@ public class Cafe {
     * @return User login or null is the user does not exist
     **/
    public static String LogIn(Cafe esql){
+      beginOperation("LogIn");
       try{
          System.out.print("\tEnter user login: ");
          String login = in.readLine();
          System.out.print("\tEnter user password: ");
          String password = in.readLine();
 
+         // unknown logins are rejected without a round trip
+         UserDirectory users = esql.users();
+         if (users != null && !users.knowsLogin(login))
+            return null;
+
          String query = String.format("SELECT * FROM USERS WHERE login = '%s' AND password = '%s'", login, password);
          int userNum = esql.executeQuery(query);
 	 if (userNum > 0)
@@ -379,6 +1153,7 @@ public class Cafe {
 // Rest of the functions definition go in here
 
  public static void Menu(Cafe esql){
+  beginOperation("Menu");
   try{   
       boolean cafemenu = true;
      
@@ -422,12 +1197,14 @@ public class Cafe {
                      String imageURL = in.readLine();
                      String query1 = String.format("INSERT INTO MENU (itemName, type, price, description, imageURL) VALUES ('%s', '%s', '%s', '%s', '%s')", itemName, type, price, description, imageURL);
                      esql.executeUpdate(query1);
+                     esql.invalidate("Menu");
                      System.out.println ("Item successfully added!");
                      break; 
 				case 2:  System.out.print("\tEnter name of the Item you would like to delete: ");
                      String itemname = in.readLine();
                      String query2 = String.format("DELETE FROM MENU WHERE itemName = '%s'", itemname);
                      esql.executeUpdate(query2);
+                     esql.invalidate("Menu");
                      System.out.println ("Item successfully deleted!");
                      break;
 				case 3:  UpdateItem(esql); break;
@@ -472,9 +1249,10 @@ public static void EnterItemName(Cafe esql){
    try{
       System.out.println("Enter Item Name:");
       String itemName = in.readLine();        
-      String query = String.format("SELECT * FROM MENU WHERE itemName = '%s'", itemName);
+      //the last result is shown when the database is too slow
+      String query = "SELECT * FROM MENU WHERE itemName = ?";
 	
-      esql.executeQueryAndPrintResult(query);
+      esql.executeQueryAndPrintResult(query, Arrays.asList(itemName), "Menu");
 
    }catch(Exception e){
 	System.err.println (e.getMessage ());
@@ -485,9 +1263,9 @@ public static void EnterItemType(Cafe esql){
    try{
       System.out.println("Enter Item Type");
       String itemType = in.readLine();       
-      String query = String.format("SELECT * FROM MENU WHERE type = '%s'", itemType);
+      String query = "SELECT * FROM MENU WHERE type = ?";
 
-      esql.executeQueryAndPrintResult(query);
+      esql.executeQueryAndPrintResult(query, Arrays.asList(itemType), "Menu");
       
    }catch(Exception e){
       System.err.println (e.getMessage ());
@@ -548,30 +1326,35 @@ public static void UpdateItem(Cafe esql){
                     String newitemName = in.readLine();
                     String query1 = String.format("UPDATE MENU SET itemName = '%s' WHERE itemName = '%s'", newitemName, itemName);
                     esql.executeUpdate(query1);
+                    esql.invalidate("Menu");
                     System.out.println (itemName + " successfully updated to: " + newitemName);
                     break;
             case 2: System.out.print("\tEnter new Item type: ");
                     String newtype = in.readLine();
                     String query2 = String.format("UPDATE MENU SET type = '%s' WHERE itemName = '%s'", newtype, itemName);
                     esql.executeUpdate(query2);
+                    esql.invalidate("Menu");
                     System.out.println (itemName + "'s type successfully updated to: " + newtype);
                     break;
             case 3: System.out.print("\tEnter new Item price: ");
                     String newprice = in.readLine();
                     String query3 = String.format("UPDATE MENU SET price = '%s' WHERE itemName = '%s'", newprice, itemName);
                     esql.executeUpdate(query3);
+                    esql.invalidate("Menu");
                     System.out.println (itemName + "'s price successfully updated to: " + newprice);
                     break;
             case 4: System.out.print("\tEnter new Item description: ");
                     String newdes = in.readLine();
                     String query4 = String.format("UPDATE MENU SET description = '%s' WHERE itemName = '%s'", newdes, itemName);
                     esql.executeUpdate(query4);
+                    esql.invalidate("Menu");
                     System.out.println (itemName + "'s description successfully updated to: " + newdes);
                     break;
             case 5: System.out.print("\tEnter new Item imageURL: ");
                     String newURL = in.readLine();
                     String query5 = String.format("UPDATE MENU SET type = '%s' WHERE itemName = '%s'", newURL, itemName);
                     esql.executeUpdate(query5);
+                    esql.invalidate("Menu");
                     System.out.println (itemName + "'s imageURL successfully updated to: " + newURL);
                     break;
             case 9: updatemenu = false; break;
@@ -584,6 +1367,7 @@ public static void UpdateItem(Cafe esql){
 }//end UpdateItem function
 
   public static void UpdateProfile(Cafe esql){
+  beginOperation("UpdateProfile");
   try {
          System.out.println ("For your safety please...");
          System.out.print("\tRenter user login: ");
@@ -602,14 +1386,24 @@ public static void UpdateItem(Cafe esql){
                 switch (readChoice()){
                    case 1: System.out.print("\tEnter new login: ");
                            String login2 = in.readLine();
+                           if (esql.users() != null && esql.users().knowsLogin(login2)) {
+                              System.out.println ("Login is already taken!");
+                              break;
+                           }
                            String query1 = String.format("UPDATE USERS SET login = '%s' WHERE login = '%s' AND password = '%s'", login2, login, password);
-                           esql.executeUpdate(query1);
+                           if (esql.executeUpdate(query1) > 0 && esql.users() != null)
+                              esql.users().renamed(login, login2);
                            System.out.println ("Login successfully updated!");
                            break;
                    case 2: System.out.print("\tEnter new phone number: ");
                            String phone = in.readLine();
+                           if (esql.users() != null && esql.users().knowsPhone(phone)) {
+                              System.out.println ("Phone number is already registered!");
+                              break;
+                           }
                            String query2 = String.format("UPDATE USERS SET phoneNum = '%s' WHERE login = '%s' AND password = '%s'", phone, login, password);
-                           esql.executeUpdate(query2);
+                           if (esql.executeUpdate(query2) > 0 && esql.users() != null)
+                              esql.users().phoneChanged(login, phone);
                            System.out.println ("Phone successfully updated!");
                            break;
                    case 3: System.out.print("\tEnter new password: ");
@@ -625,6 +1419,11 @@ public static void UpdateItem(Cafe esql){
                            System.out.println ("Fav items successfully updated!");
                            break;
                    case 5: String type="Manager";
+                           // non-managers are turned away without a round trip
+                           if (esql.users() != null && !type.equals(esql.users().typeOf(login))) {
+                              System.out.println("You are not a manager.");
+                              break;
+                           }
                            String query5 = String.format("SELECT * FROM USERS WHERE login = '%s' AND password = '%s' AND type = '%s'", login, password, type);
 		           int userNum = esql.executeQuery(query5);
 		           if(userNum > 0)
@@ -644,11 +1443,13 @@ public static void UpdateItem(Cafe esql){
                                  default : System.out.println("Unrecognized choice!"); break;
                               }
                               String query6 = String.format("UPDATE USERS SET type = '%s' WHERE login = '%s'", u_type, u_login);
-                              esql.executeUpdate(query6);
-                              System.out.println ("User type successfully updated!");
                               String query7 = String.format("SELECT * FROM Users WHERE login = '%s'", u_login);
-                              int rowCount = esql.executeQueryAndPrintResult(query7);
+                              //update and re-read in one round trip
+                              int rowCount = esql.executePipelineAndPrintResult(query6, query7);
+                              System.out.println ("User type successfully updated!");
                               System.out.println ("total row(s): " + rowCount);
+                              if (rowCount > 0 && !u_type.equals("") && esql.users() != null)
+                                 esql.users().typeChanged(u_login, u_type);
                            }
 			   else System.out.println("You are not a manager.");
                            break;
@@ -663,24 +1464,36 @@ public static void UpdateItem(Cafe esql){
   }
 
     public static void PlaceOrder(Cafe esql, String login){
+      beginOperation("PlaceOrder");
   	try{
        String orderid = "currval('orderid_seq')"; //get current value of order id sequence
        String paid = "false";
        String time = "now()"; //current time timestamp
        String total = "0";
 
-      String query1 = String.format("INSERT INTO orders (login, paid, timeStampRecieved, total) VALUES ('%s','%s','%s','%s')", login, paid, time, total);
-      esql.executeUpdate(query1);
-
       System.out.print("\tEnter item name you want to order: ");
       String item = in.readLine();
-      String query2 = String.format("UPDATE Orders SET total = Menu.price FROM Menu WHERE orderid = %s AND Menu.itemName = '%s'", orderid, item);
-      esql.executeUpdate(query2);
 
-      System.out.println ("Order successfully created!");
+      //with a journal the order is kept on disk here and sent to the database in the background
+      try{
+         String key = esql.journalOrder(login, item);
+         if (key != null){
+            System.out.println ("Order successfully received! (" + key + ")");
+            System.out.println ("It will show in your order history shortly.");
+            return;
+         }//end if
+      }catch(IOException e){
+         System.err.println (e.getMessage() + ", placing the order directly");
+      }//end try
 
+      String query1 = String.format("INSERT INTO orders (login, paid, timeStampRecieved, total) VALUES ('%s','%s','%s','%s')", login, paid, time, total);
+      String query2 = String.format("UPDATE Orders SET total = Menu.price FROM Menu WHERE orderid = %s AND Menu.itemName = '%s'", orderid, item);
       String query3 = String.format("SELECT * FROM Orders WHERE login = '%s'", login);
-      int rowCount = esql.executeQueryAndPrintResult(query3);
+
+      //insert, price and list the orders in one round trip
+      int rowCount = esql.executePipelineAndPrintResult(query1, query2, query3);
+      esql.invalidate("Orders");
+      System.out.println ("Order successfully created!");
       System.out.println ("total row(s): " + rowCount);
       }catch(Exception e){
          System.err.println (e.getMessage());
@@ -688,6 +1501,7 @@ public static void UpdateItem(Cafe esql){
   }
 
   public static void UpdateOrder(Cafe esql){
+     beginOperation("UpdateOrder");
      try{
         boolean updateorder = true;
 
@@ -697,16 +1511,17 @@ public static void UpdateItem(Cafe esql){
 
            //to check if the item that is being searched for exists
          String query0 = String.format("SELECT * FROM ORDERS WHERE orderid = '%s'", inputorderid);
-         int orderExists = esql.executeQuery(query0);
+         //and if the order is not paid yet, both probes run at the same time
+         String query1 = String.format("SELECT * FROM ORDERS WHERE orderid = '%s' AND paid = 'false'", inputorderid);
+         Future<Integer> orderExistsAsync = esql.executeQueryAsync(query0);
+         Future<Integer> notpaidAsync = esql.executeQueryAsync(query1);
+         int orderExists = Cafe.await(orderExistsAsync);
          if(orderExists < 1){
             System.out.println("This OrderID doesn't exist");
             break;
          }//end if
 
-
-         //now checking if the order is not paid yet
-            String query1 = String.format("SELECT * FROM ORDERS WHERE orderid = '%s' AND paid = 'false'", inputorderid);
-            int notpaid = esql.executeQuery(query1);
+            int notpaid = Cafe.await(notpaidAsync);
             if (notpaid > 0){
                while(updateorder){
                   System.out.println("What would you like to update?");
@@ -724,12 +1539,14 @@ public static void UpdateItem(Cafe esql){
                            String neworderid = in.readLine();
                            String query2 = String.format("UPDATE ORDERS SET orderid = '%s' orderid = '%s'" , neworderid, inputorderid);
                            esql.executeUpdate(query2);
+                           esql.invalidate("Orders");
                            System.out.println ("OrderID successfully updated!");
                            break;
                      case 2: System.out.print("\tEnter new Login: ");
                            String newlogin = in.readLine();
                            String query3 = String.format("UPDATE ORDERS SET login = '%s' orderid = '%s'" , newlogin, inputorderid);
                            esql.executeUpdate(query3);
+                           esql.invalidate("Orders");
                            System.out.println ("Login successfully updated!");
                            break;
                      case 3: System.out.println ("Please verify that you are a manager or an employee.");
@@ -746,6 +1563,7 @@ public static void UpdateItem(Cafe esql){
                            else{
                               String query5 = String.format("UPDATE ORDERS SET paid = 4true WHERE orderid = '%s'", inputorderid);
                               esql.executeQuery(query5);
+                              esql.invalidate("Orders");
                               System.out.println("Updated order to paid!");
                               break;
                            }//end else
@@ -753,12 +1571,14 @@ public static void UpdateItem(Cafe esql){
                            String newtimestamp = in.readLine();
                            String query6 = String.format("UPDATE ORDERS SET timeStampRecieved = '%s' orderid = '%s'" , newtimestamp, inputorderid);
                            esql.executeUpdate(query6);
+                           esql.invalidate("Orders");
                            System.out.println ("Timestamp successfully updated!");
                            break;
                      case 5: System.out.print("\tEnter new Total: ");
                            String newtotal = in.readLine();
                            String query7 = String.format("UPDATE ORDERS SET total = '%s' orderid = '%s'" , newtotal, inputorderid);
                            esql.executeUpdate(query7);
+                           esql.invalidate("Orders");
                            System.out.println ("Total successfully updated!");
                            break;
                      case 9: updateorder = false; break;
@@ -776,7 +1596,7 @@ public static void UpdateItem(Cafe esql){
 
 
    public static void BrowseOrder(Cafe esql){
-
+      beginOperation("BrowseOrder");
       try{
             System.out.println("Please login again.");
             System.out.print("\tEnter user login: ");
@@ -795,8 +1615,9 @@ public static void UpdateItem(Cafe esql){
             }//end if
             else{
                System.out.println("Here are the unpaid orders made in the last 24 hours.");
-               String query2 = String.format("SELECT * FROM ORDERS WHERE paid = 'false' AND timeStampRecieved > now() - interval '24 hours'");
-               esql.executeQueryAndPrintResult(query2);
+               //every staff terminal asks for the same list, serve it from the cache
+               String query2 = "SELECT * FROM ORDERS WHERE paid = 'false' AND timeStampRecieved > now() - interval '24 hours'";
+               esql.executeQueryAndPrintCachedResult(query2, new ArrayList<String>(), "Orders");
             }//end else
 
             System.out.println("Sending user back to main menu...");
@@ -0,0 +1,150 @@
+/*
+ * Fixed size pool of physical connections for the Cafe program
+ * ============================================================
+ *
+ * Connections are opened lazily, up to the pool size, and handed out to one
+ * caller at a time.  Callers that find the pool exhausted wait for another
+ * caller to release a connection.  A connection that failed with a
+ * connection error (e.g. the server restarted) is discarded instead of
+ * released, and a new one is opened in its place on demand.
+ */
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class ConnectionPool {
+
+   private final String url;
+   private final String user;
+   private final String passwd;
+   private final int size;
+
+   // idle connections, and every connection opened so far
+   private final BlockingQueue<Connection> idle;
+   private final List<Connection> opened = new ArrayList<Connection>();
+
+   public ConnectionPool(String url, String user, String passwd, int size){
+      this.url = url;
+      this.user = user;
+      this.passwd = passwd;
+      this.size = size;
+      this.idle = new ArrayBlockingQueue<Connection>(size);
+   }
+
+   public int size(){
+      return size;
+   }
+
+   /*
+    * Takes an idle connection, opening a new one while the pool is not yet
+    * full, otherwise waits until one is released.
+    **/
+   public Connection borrow() throws SQLException {
+      Connection conn = idle.poll();
+      while (conn == null){
+         synchronized (opened){
+            if (opened.size() < size){
+               conn = DriverManager.getConnection(url, user, passwd);
+               try{
+                  prepare(conn);
+               }catch (SQLException e){
+                  conn.close();
+                  throw e;
+               }//end try
+               opened.add(conn);
+               return conn;
+            }//end if
+         }//end synchronized
+         // wake up now and then, a discarded connection frees a slot too
+         try{
+            conn = idle.poll(250, TimeUnit.MILLISECONDS);
+         }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection");
+         }//end try
+      }//end while
+      return conn;
+   }//end borrow
+
+   /*
+    * Called once on every connection the pool opens, before it is handed
+    * out.  Override to apply session settings.
+    **/
+   protected void prepare(Connection conn) throws SQLException {
+   }
+
+   /*
+    * Returns a borrowed connection to the pool.  Connections left in a
+    * transaction are rolled back first so the next caller starts clean.
+    **/
+   public void release(Connection conn){
+      try{
+         if (!conn.getAutoCommit()){
+            conn.rollback();
+            conn.setAutoCommit(true);
+         }//end if
+      }catch (SQLException e){
+         // ignored, the next caller reports a broken connection.
+      }//end try
+      idle.offer(conn);
+   }//end release
+
+   /*
+    * Drops a borrowed connection that is no longer usable, making room for
+    * a new one.
+    **/
+   public void discard(Connection conn){
+      synchronized (opened){
+         opened.remove(conn);
+      }//end synchronized
+      try{
+         conn.close();
+      }catch (SQLException e){
+         // ignored, the connection is already broken.
+      }//end try
+   }//end discard
+
+   /*
+    * @return true when e means the connection itself failed, so it should
+    * be discarded rather than reused.  The pg73 driver sets no SQLState, so
+    * its connection errors are told apart by their message; for a batch,
+    * the underlying error is chained through getNextException.
+    **/
+   public static boolean isBroken(SQLException e){
+      for (SQLException x = e; x != null; x = x.getNextException()){
+         String state = x.getSQLState();
+         if (state != null && state.startsWith("08"))
+            return true;
+         String message = x.getMessage() == null ? "" : x.getMessage().toLowerCase(Locale.ENGLISH);
+         if (message.contains("connection") || message.contains("backend") ||
+             message.contains("i/o error") || message.contains("io erro"))
+            return true;
+      }//end for
+      return false;
+   }//end isBroken
+
+   /*
+    * Closes every connection opened by the pool.
+    **/
+   public void close(){
+      synchronized (opened){
+         for (Connection conn : opened){
+            try{
+               conn.close();
+            }catch (SQLException e){
+               // ignored.
+            }//end try
+         }//end for
+         opened.clear();
+      }//end synchronized
+      idle.clear();
+   }//end close
+
+}//end ConnectionPool
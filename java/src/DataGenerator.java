@@ -0,0 +1,500 @@
+/*
+ * Synthetic Orders and ItemStatus data for the Cafe database
+ * ==========================================================
+ *
+ * Generates orders placed by the customers in data/users.csv for the items
+ * in data/menu.csv, in the ';'-delimited format read by sql/src/load_data.sql.
+ *
+ *    java DataGenerator <number of orders> [-seed <n>] [-threads <n>]
+ *         [-days <n>] [-end <yyyy-mm-dd>] [-start <first orderid>]
+ *         [-data <dir with users.csv and menu.csv>]
+ *         [-out <dir> | -stdout orders|itemstatus]
+ *
+ * The output only depends on the arguments: the same seed, order count, day
+ * range and input files always give the same rows, however many threads are
+ * used.  The range ends now, or at the end of the -end day when that is in
+ * the past, so pass -end to get the same rows on another day.  Orders are split into fixed size chunks, each generated from its own
+ * seed on a worker thread, and written in order with a bounded number of
+ * chunks in flight, so memory stays constant at any row count.
+ *
+ * The data models what the Cafe screens query:
+ *  - item popularity follows a Zipf distribution in menu order (coffee
+ *    first), and a few regulars, picked at random from the seed, place far
+ *    more orders than most customers;
+ *  - order times peak at breakfast and lunch, orderid grows with time, and
+ *    no order or item update is later than the end of the range;
+ *  - nearly every order older than a day is paid, a share of the last day is not
+ *    (the staff view in BrowseOrder), and ItemStatus follows payment.
+ *
+ * -stdout writes one table to standard out, ready for
+ *    java DataGenerator 50000000 -stdout orders | psql <db> -c "COPY orders FROM STDIN WITH DELIMITER ';'"
+ * followed by the same command with itemstatus.
+ *
+ * Orderids start at 1 (-start).  sql/scripts/create_db.sh moves orderid_seq
+ * and orders_orderid_seq past the largest orderid loaded, so PlaceOrder
+ * keeps working with any number of generated orders.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class DataGenerator {
+
+   // orders generated per task; each chunk has its own random seed
+   static final int CHUNK = 50000;
+
+   // share of orders with one, two and three distinct items
+   static final double[] ITEMS_PER_ORDER = {0.60, 0.30, 0.10};
+
+   // relative number of orders per hour of the day, 0 to 23
+   static final double[] HOURLY = {
+      0, 0, 0, 0, 0, 0, 2, 8, 10, 6, 3, 5, 9, 7, 3, 3, 3, 4, 4, 3, 2, 1, 0, 0};
+
+   // share of orders from the last 24 hours that are still unpaid
+   static final double UNPAID_RECENT = 0.4;
+   // share of older orders that were never paid
+   static final double UNPAID_OLD = 0.005;
+
+   static final String[] OPEN_STATUS = {"Hasn't started", "Started"};
+
+   private final long seed;
+   private final long orders;
+   private final long firstId;
+   private final int days;
+
+   private final byte[][] logins;
+   private final double[] loginCdf;
+   private final byte[][] items;
+   private final double[] prices;
+   private final double[] itemCdf;
+   private final double[] countCdf = cdf(ITEMS_PER_ORDER);
+   private final double[] hourCdf;
+   // hours of the last day, which stops at the end of the range
+   private final double[] lastHourCdf;
+   // seconds of the last day before the end of the range
+   private final int lastDaySeconds;
+   // "yyyy-mm-dd " of every day in the range, oldest first
+   private final byte[][] dayPrefix;
+
+   DataGenerator(long seed, long orders, long firstId, int days, Calendar end,
+                 List<String> users, List<String[]> menu){
+      this.seed = seed;
+      this.orders = orders;
+      this.firstId = firstId;
+      this.days = days;
+
+      // a few regulars, a long tail of occasional customers; who is a regular
+      // is shuffled from the seed rather than taken from the file order
+      logins = new byte[users.size()][];
+      for (int i = 0; i < logins.length; ++i)
+         logins[i] = utf8(users.get(i));
+      Rand shuffle = new Rand(seed ^ 0x5DEECE66DL);
+      for (int i = logins.length - 1; i > 0; --i){
+         int j = shuffle.nextInt(i + 1);
+         byte[] t = logins[i];
+         logins[i] = logins[j];
+         logins[j] = t;
+      }//end for
+      loginCdf = zipfCdf(logins.length, 0.8);
+
+      items = new byte[menu.size()][];
+      prices = new double[menu.size()];
+      for (int i = 0; i < items.length; ++i){
+         items[i] = utf8(menu.get(i)[0]);
+         prices[i] = Double.parseDouble(menu.get(i)[1]);
+      }//end for
+      itemCdf = zipfCdf(items.length, 1.1);
+      hourCdf = cdf(HOURLY);
+
+      // the last day is the one end falls in, or the one before at midnight
+      Calendar day = (Calendar) end.clone();
+      day.set(Calendar.HOUR_OF_DAY, 0);
+      day.set(Calendar.MINUTE, 0);
+      day.set(Calendar.SECOND, 0);
+      day.set(Calendar.MILLISECOND, 0);
+      if (!day.before(end))
+         day.add(Calendar.DAY_OF_MONTH, -1);
+      lastDaySeconds = (int) Math.max(1, Math.min(86400,
+         (end.getTimeInMillis() - day.getTimeInMillis()) / 1000));
+      lastHourCdf = hourCdf(lastDaySeconds);
+
+      dayPrefix = new byte[days][];
+      day.add(Calendar.DAY_OF_MONTH, 1 - days);
+      for (int d = 0; d < days; ++d){
+         dayPrefix[d] = utf8(String.format("%04d-%02d-%02d ", day.get(Calendar.YEAR),
+            day.get(Calendar.MONTH) + 1, day.get(Calendar.DAY_OF_MONTH)));
+         day.add(Calendar.DAY_OF_MONTH, 1);
+      }//end for
+   }
+
+   /*
+    * Rows of one chunk: the Orders lines and the ItemStatus lines.
+    **/
+   static class Chunk {
+      final Bytes orders = new Bytes(CHUNK * 64);
+      final Bytes itemStatus = new Bytes(CHUNK * 96);
+      long rows = 0;
+   }//end Chunk
+
+   /*
+    * Generates orders [chunk * CHUNK, chunk * CHUNK + CHUNK) of the run.
+    **/
+   Chunk generate(long chunk){
+      Chunk out = new Chunk();
+      Rand rand = new Rand(seed * 0x9E3779B97F4A7C15L + chunk);
+      long from = chunk * CHUNK;
+      long to = Math.min(orders, from + CHUNK);
+      int[] picked = new int[ITEMS_PER_ORDER.length];
+
+      for (long i = from; i < to; ++i){
+         long orderid = firstId + i;
+         // orderid grows with time: order i falls on day i * days / orders
+         int day = (int) (i * days / orders);
+         int daySeconds = day == days - 1 ? lastDaySeconds : 86400;
+         int hour = Math.min((daySeconds - 1) / 3600,
+            pick(day == days - 1 ? lastHourCdf : hourCdf, rand.nextDouble()));
+         int time = hour * 3600 + rand.nextInt(Math.min(3600, daySeconds - hour * 3600));
+         boolean paid = rand.nextDouble() >= (day == days - 1 ? UNPAID_RECENT : UNPAID_OLD);
+         byte[] login = logins[pick(loginCdf, rand.nextDouble())];
+
+         int count = 1 + pick(countCdf, rand.nextDouble());
+         int n = 0;
+         double total = 0;
+         for (int tries = 0; n < count && tries < count * 8; ++tries){
+            int item = pick(itemCdf, rand.nextDouble());
+            boolean seen = false;
+            for (int k = 0; k < n; ++k)
+               seen |= picked[k] == item;
+            if (!seen){
+               picked[n++] = item;
+               total += prices[item];
+            }//end if
+         }//end for
+
+         Bytes o = out.orders;
+         o.num(orderid).sep().add(login).sep().add(paid ? "true" : "false").sep();
+         timestamp(o, day, time).sep();
+         o.cents(Math.round(total * 100)).nl();
+
+         for (int k = 0; k < n; ++k){
+            // items are updated a few minutes after the order comes in
+            int done = Math.min(daySeconds - 1, time + 60 * (1 + rand.nextInt(15)));
+            Bytes s = out.itemStatus;
+            s.num(orderid).sep().add(items[picked[k]]).sep();
+            timestamp(s, day, Math.max(time, done)).sep();
+            s.add(paid ? "Finished" : OPEN_STATUS[rand.nextInt(OPEN_STATUS.length)]).sep().nl();
+         }//end for
+         out.rows += 1 + n;
+      }//end for
+      return out;
+   }//end generate
+
+   private Bytes timestamp(Bytes b, int day, int time){
+      return b.add(dayPrefix[day]).two(time / 3600).add(':').two(time / 60 % 60).add(':').two(time % 60);
+   }
+
+   /*
+    * Hours of a day cut short after seconds: HOURLY up to the cut, the hour
+    * it falls in in proportion, or every hour before it alike when HOURLY
+    * has no orders there (a range ending in the early morning).
+    **/
+   static double[] hourCdf(int seconds){
+      double[] w = new double[HOURLY.length];
+      double sum = 0;
+      for (int h = 0; h < w.length; ++h)
+         sum += w[h] = HOURLY[h] * Math.max(0, Math.min(1, (seconds - h * 3600) / 3600.0));
+      if (sum == 0)
+         for (int h = 0; h < w.length; ++h)
+            w[h] = Math.max(0, Math.min(1, (seconds - h * 3600) / 3600.0));
+      return cdf(w);
+   }//end hourCdf
+
+   /*
+    * Runs the generation on threads workers and streams every chunk, in
+    * order, to the given outputs (either may be null to skip that table).
+    * @return the number of rows written
+    **/
+   long run(int threads, OutputStream ordersOut, OutputStream itemStatusOut) throws Exception {
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      ArrayDeque<Future<Chunk>> inFlight = new ArrayDeque<Future<Chunk>>();
+      long chunks = (orders + CHUNK - 1) / CHUNK;
+      long next = 0;
+      long rows = 0;
+      try{
+         while (next < chunks || !inFlight.isEmpty()){
+            // keep every worker busy, but never more than two chunks each
+            while (next < chunks && inFlight.size() < threads * 2){
+               final long chunk = next++;
+               inFlight.add(pool.submit(new Callable<Chunk>() {
+                  public Chunk call(){
+                     return generate(chunk);
+                  }
+               }));
+            }//end while
+            Chunk done = inFlight.poll().get();
+            if (ordersOut != null)
+               done.orders.writeTo(ordersOut);
+            if (itemStatusOut != null)
+               done.itemStatus.writeTo(itemStatusOut);
+            rows += done.rows;
+         }//end while
+      }finally{
+         pool.shutdownNow();
+      }//end try
+      return rows;
+   }//end run
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 1 || args.length % 2 != 1){
+         System.err.println("Usage: java " + DataGenerator.class.getName() +
+            " <number of orders> [-seed <n>] [-threads <n>] [-days <n>] [-end <yyyy-mm-dd>]" +
+            " [-start <first orderid>] [-data <dir>] [-out <dir> | -stdout orders|itemstatus]");
+         System.exit(1);
+      }//end if
+      long orders = Long.parseLong(args[0]);
+      long seed = 166;
+      int threads = Runtime.getRuntime().availableProcessors();
+      int days = 365;
+      long start = 1;
+      String data = "data";
+      String outDir = null;
+      String stdout = null;
+      Calendar now = Calendar.getInstance();
+      Calendar end = null;
+      for (int i = 1; i < args.length; i += 2){
+         String flag = args[i];
+         String value = args[i + 1];
+         if (flag.equals("-seed")) seed = Long.parseLong(value);
+         else if (flag.equals("-threads")) threads = Integer.parseInt(value);
+         else if (flag.equals("-days")) days = Integer.parseInt(value);
+         else if (flag.equals("-start")) start = Long.parseLong(value);
+         else if (flag.equals("-data")) data = value;
+         else if (flag.equals("-out")) outDir = value;
+         else if (flag.equals("-stdout")) stdout = value.toLowerCase();
+         else if (flag.equals("-end")){
+            String[] ymd = value.split("-");
+            end = Calendar.getInstance();
+            end.clear();
+            end.set(Integer.parseInt(ymd[0]), Integer.parseInt(ymd[1]) - 1, Integer.parseInt(ymd[2]));
+            end.add(Calendar.DAY_OF_MONTH, 1);
+         }else{
+            System.err.println("Unknown option: " + flag);
+            System.exit(1);
+         }//end if
+      }//end for
+      // the range ends now, or at the end of the -end day if that is earlier,
+      // so no order is in the future
+      if (end == null || end.after(now))
+         end = now;
+
+      DataGenerator generator = new DataGenerator(seed, orders, start, Math.max(1, days), end,
+         readUsers(new File(data, "users.csv")), readMenu(new File(data, "menu.csv")));
+
+      OutputStream ordersOut = null;
+      OutputStream itemStatusOut = null;
+      if (stdout != null){
+         OutputStream out = new FileOutputStream(FileDescriptor.out);
+         if (stdout.equals("orders")) ordersOut = out;
+         else if (stdout.equals("itemstatus")) itemStatusOut = out;
+         else{
+            System.err.println("-stdout takes orders or itemstatus");
+            System.exit(1);
+         }//end if
+      }else{
+         File dir = new File(outDir == null ? data : outDir);
+         ordersOut = new FileOutputStream(new File(dir, "orders.csv"));
+         itemStatusOut = new FileOutputStream(new File(dir, "itemStatus.csv"));
+      }//end if
+
+      long began = System.nanoTime();
+      long rows;
+      try{
+         rows = generator.run(threads, ordersOut, itemStatusOut);
+      }finally{
+         if (ordersOut != null) ordersOut.close();
+         if (itemStatusOut != null) itemStatusOut.close();
+      }//end try
+      double seconds = (System.nanoTime() - began) / 1e9;
+      System.err.println(String.format(
+         "Generated %d orders (%d rows with their items) in %.1f s, %.0f rows/s on %d thread(s)",
+         orders, rows, seconds, rows / Math.max(seconds, 1e-9), threads));
+      // sql/scripts/create_db.sh moves both sequences past the loaded orders
+      // itself; COPY into an existing database has to do it by hand
+      System.err.println(String.format(
+         "Last orderid is %d; after loading with COPY run: SELECT setval('orderid_seq', %d); SELECT setval('orders_orderid_seq', %d);",
+         start + orders - 1, start + orders - 1, start + orders - 1));
+   }//end main
+
+   /*
+    * Reads the login (first field) of every customer in users.csv, the
+    * users whose type (fifth field) is Customer; staff place no orders.
+    **/
+   static List<String> readUsers(File file) throws IOException {
+      List<String> users = new ArrayList<String>();
+      for (String[] f : read(file))
+         if (f.length > 4 && f[4].trim().equals("Customer"))
+            users.add(f[0].trim());
+      if (users.isEmpty())
+         throw new IOException("No customers in " + file);
+      return users;
+   }//end readUsers
+
+   /*
+    * Reads the item name and price of every line of menu.csv.
+    **/
+   static List<String[]> readMenu(File file) throws IOException {
+      List<String[]> menu = new ArrayList<String[]>();
+      for (String[] f : read(file))
+         menu.add(new String[] { f[0].trim(), f[2].trim() });
+      return menu;
+   }//end readMenu
+
+   private static List<String[]> read(File file) throws IOException {
+      List<String[]> rows = new ArrayList<String[]>();
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      try{
+         String line;
+         while ((line = reader.readLine()) != null)
+            if (!line.trim().isEmpty())
+               rows.add(line.split(";", -1));
+      }finally{
+         reader.close();
+      }//end try
+      return rows;
+   }//end read
+
+   private static byte[] utf8(String s){
+      try{
+         return s.getBytes("UTF-8");
+      }catch (IOException e){
+         throw new IllegalStateException(e);
+      }//end try
+   }
+
+   // cumulative distribution where rank r has weight 1 / (r + 1)^s
+   private static double[] zipfCdf(int n, double s){
+      double[] w = new double[n];
+      for (int r = 0; r < n; ++r)
+         w[r] = 1 / Math.pow(r + 1, s);
+      return cdf(w);
+   }
+
+   private static double[] cdf(double[] weights){
+      double[] c = new double[weights.length];
+      double sum = 0;
+      for (int i = 0; i < weights.length; ++i)
+         c[i] = (sum += weights[i]);
+      for (int i = 0; i < c.length; ++i)
+         c[i] /= sum;
+      return c;
+   }
+
+   // index of the first cdf entry above u
+   private static int pick(double[] cdf, double u){
+      int i = Arrays.binarySearch(cdf, u);
+      i = i < 0 ? -i - 1 : i + 1;
+      return Math.min(i, cdf.length - 1);
+   }
+
+   /*
+    * xorshift64* generator: fast, and the same sequence on every JVM.
+    **/
+   static class Rand {
+      private long x;
+
+      Rand(long seed){
+         x = seed == 0 ? 0x2545F4914F6CDD1DL : seed;
+         for (int i = 0; i < 4; ++i)
+            nextLong();
+      }
+
+      long nextLong(){
+         x ^= x >>> 12;
+         x ^= x << 25;
+         x ^= x >>> 27;
+         return x * 0x2545F4914F6CDD1DL;
+      }
+
+      double nextDouble(){
+         return (nextLong() >>> 11) * 0x1.0p-53;
+      }
+
+      int nextInt(int bound){
+         return (int) ((nextLong() >>> 33) % bound);
+      }
+   }//end Rand
+
+   /*
+    * Growable byte buffer with the few appends the rows need.
+    **/
+   static class Bytes {
+      private byte[] buf;
+      private int len = 0;
+
+      Bytes(int capacity){
+         buf = new byte[capacity];
+      }
+
+      private void room(int n){
+         if (len + n > buf.length)
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + n));
+      }
+
+      Bytes add(byte[] b){
+         room(b.length);
+         System.arraycopy(b, 0, buf, len, b.length);
+         len += b.length;
+         return this;
+      }
+
+      Bytes add(String ascii){
+         room(ascii.length());
+         for (int i = 0; i < ascii.length(); ++i)
+            buf[len++] = (byte) ascii.charAt(i);
+         return this;
+      }
+
+      Bytes add(char c){
+         room(1);
+         buf[len++] = (byte) c;
+         return this;
+      }
+
+      Bytes sep(){ return add(';'); }
+
+      Bytes nl(){ return add('\n'); }
+
+      Bytes two(int v){
+         return add((char) ('0' + v / 10)).add((char) ('0' + v % 10));
+      }
+
+      Bytes num(long v){
+         return add(Long.toString(v));
+      }
+
+      // an amount in cents as d.cc
+      Bytes cents(long c){
+         return num(c / 100).add('.').two((int) (c % 100));
+      }
+
+      void writeTo(OutputStream out) throws IOException {
+         out.write(buf, 0, len);
+      }
+   }//end Bytes
+
+}//end DataGenerator
@@ -0,0 +1,557 @@
+/*
+ * Local order intake journal for the Cafe program
+ * ===============================================
+ *
+ * PlaceOrder appends each order to a memory-mapped file and returns as soon
+ * as the file is forced to disk, so taking an order does not wait for the
+ * DBMS (or fail when it is unreachable).  Appends that arrive while a force
+ * is in progress are forced together by the next one.
+ *
+ * A background drainer replays the durable entries into Orders and
+ * ItemStatus in batches, through the intake_order function (see
+ * sql/src/triggers.sql).  Every entry carries a random key that is recorded
+ * in OrderIntake in the same transaction, so an entry replayed twice, e.g.
+ * after a crash between the commit and the checkpoint, is skipped.
+ *
+ * An entry the database rejects for good (as opposed to being unreachable)
+ * is written to <journal>.failed with the error and skipped, so one bad
+ * order cannot hold up the ones behind it.  An error is only blamed on the
+ * entry when it names the entry's data (a constraint or invalid input) or
+ * another entry of the same batch went through; anything else, e.g. a
+ * missing intake_order function or a permissions error, holds every entry
+ * back until it is fixed.  So does a run of rejections for the same reason.
+ *
+ * File layout: a header (magic, generation, drained offset) followed by
+ * records of [length][generation][crc32][payload].  On open, records are
+ * read from the drained offset until one is torn or from an older
+ * generation.  Once everything is drained and the file is more than half
+ * full, the generation is bumped and appends restart after the header.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+public class OrderJournal {
+
+   static final int MAGIC = 0x43414645;
+   static final int HEADER = 64;
+   static final int RECORD_HEADER = 12;
+
+   // largest number of orders replayed in one transaction
+   static final int MAX_BATCH = 500;
+   // longest wait between replay attempts while the DBMS is unavailable
+   static final long MAX_BACKOFF_MILLIS = 30000;
+   // rejections in a row for the same reason after which the rest are held
+   static final int MAX_SAME_REJECTIONS = 3;
+
+   // inserts the order unless its key was already replayed
+   static final String REPLAY_SQL =
+      "INSERT INTO OrderIntake (intakeKey, orderid) SELECT ?, intake_order(?, ?, ?) " +
+      "WHERE NOT EXISTS (SELECT 1 FROM OrderIntake WHERE intakeKey = ?)";
+
+   /*
+    * One order read back from the journal.
+    **/
+   static class Entry {
+      final String key;
+      final String login;
+      final String item;
+      final long received;
+      // offset just past the record
+      final int end;
+
+      Entry(String key, String login, String item, long received, int end){
+         this.key = key;
+         this.login = login;
+         this.item = item;
+         this.received = received;
+         this.end = end;
+      }
+   }//end Entry
+
+   private final Cafe esql;
+   // orders the database rejected, one line each
+   private final File deadLetters;
+   private final RandomAccessFile file;
+   private final FileLock lock;
+   private final MappedByteBuffer map;
+   private final int capacity;
+
+   // all guarded by this
+   private int generation;
+   private int writePos;
+   private int syncedPos;
+   private int drainedPos;
+   private IOException syncError = null;
+   private boolean closed = false;
+   private long received = 0;
+   // entries done with: written to the database or set aside
+   private long drained = 0;
+   private long deadLettered = 0;
+
+   // drainer thread only: the database is unreachable and that was reported
+   private boolean waiting = false;
+   // drainer thread only: reason of the last rejections in a row, and count
+   private String lastRejection = null;
+   private int sameRejections = 0;
+
+   private final Thread flusher;
+   private final Thread drainer;
+
+   /*
+    * Opens (or creates) the journal at path, at least size bytes long, and
+    * starts replaying whatever a previous run left undrained.
+    **/
+   public OrderJournal(Cafe esql, String path, int size) throws IOException {
+      this.esql = esql;
+      this.deadLetters = new File(path + ".failed");
+      this.file = new RandomAccessFile(new File(path), "rw");
+      FileChannel channel = file.getChannel();
+      this.lock = channel.tryLock();
+      if (lock == null){
+         file.close();
+         throw new IOException("Order journal " + path + " is in use by another process");
+      }//end if
+      if (file.length() < size)
+         file.setLength(size);
+      this.capacity = (int) Math.min(Integer.MAX_VALUE, file.length());
+      this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+
+      if (map.getInt(0) != MAGIC){
+         map.putInt(0, MAGIC);
+         map.putInt(4, 1);
+         map.putLong(8, HEADER);
+         map.force();
+      }//end if
+      generation = map.getInt(4);
+      long drained = map.getLong(8);
+      drainedPos = drained < HEADER || drained > capacity ? HEADER : (int) drained;
+      // everything that survived in the file counts as durable
+      writePos = drainedPos;
+      for (Entry e = read(writePos); e != null; e = read(writePos)){
+         writePos = e.end;
+         ++received;
+      }//end for
+      syncedPos = writePos;
+
+      flusher = new Thread(new Runnable() {
+         public void run(){ flushLoop(); }
+      }, "order-journal-flusher");
+      drainer = new Thread(new Runnable() {
+         public void run(){ drainLoop(); }
+      }, "order-journal-drainer");
+      flusher.setDaemon(true);
+      drainer.setDaemon(true);
+      flusher.start();
+      drainer.start();
+   }
+
+   /*
+    * Appends an order and returns its key once the entry is on disk.  When
+    * this throws, the entry is not in the journal and is never replayed.
+    * @throws IOException when the journal is full, closed or cannot be forced
+    **/
+   public String append(String login, String item) throws IOException {
+      String key = UUID.randomUUID().toString();
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeUTF(key);
+      out.writeUTF(login);
+      out.writeUTF(item);
+      out.writeLong(System.currentTimeMillis());
+      byte[] payload = bytes.toByteArray();
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+
+      synchronized (this){
+         if (closed)
+            throw new IOException("Order journal is closed");
+         if (syncError != null)
+            throw syncError;
+         if (writePos + RECORD_HEADER + payload.length > capacity)
+            throw new IOException("Order journal is full");
+         int at = writePos;
+         map.putInt(at + 4, generation);
+         map.putInt(at + 8, (int) crc.getValue());
+         for (int i = 0; i < payload.length; ++i)
+            map.put(at + RECORD_HEADER + i, payload[i]);
+         map.putInt(at, payload.length);
+         writePos = at + RECORD_HEADER + payload.length;
+         ++received;
+         int end = writePos;
+         int gen = generation;
+         notifyAll();
+
+         // wait for the flusher to force this entry, together with any others.
+         // The entry is already visible to the next open, so this cannot give
+         // up early; an interrupt is kept for the caller instead
+         boolean interrupted = false;
+         while (gen == generation && syncedPos < end && syncError == null){
+            try{
+               wait();
+            }catch (InterruptedException e){
+               interrupted = true;
+            }//end try
+         }//end while
+         if (interrupted)
+            Thread.currentThread().interrupt();
+         if (gen == generation && syncedPos < end){
+            // the force failed: end the journal before the first entry that
+            // did not reach the disk, the callers place those orders directly
+            if (writePos > syncedPos){
+               map.putInt(syncedPos, 0);
+               writePos = syncedPos;
+               received = drained + countEntries(drainedPos, syncedPos);
+            }//end if
+            throw syncError;
+         }//end if
+      }//end synchronized
+      return key;
+   }//end append
+
+   /*
+    * Forces appended entries to disk, one force for every append that
+    * arrived since the previous one.
+    **/
+   private void flushLoop(){
+      while (true){
+         int target;
+         int gen;
+         synchronized (this){
+            while (!closed && syncedPos >= writePos){
+               try{
+                  wait();
+               }catch (InterruptedException e){
+                  return;
+               }//end try
+            }//end while
+            if (syncedPos >= writePos)
+               return;
+            target = writePos;
+            gen = generation;
+         }//end synchronized
+         IOException error = null;
+         try{
+            map.force();
+         }catch (Exception e){
+            error = new IOException("Unable to force the order journal: " + e.getMessage());
+         }//end try
+         synchronized (this){
+            if (error != null)
+               syncError = error;
+            else if (gen == generation)
+               syncedPos = Math.max(syncedPos, target);
+            notifyAll();
+            if (error != null)
+               return;
+         }//end synchronized
+      }//end while
+   }//end flushLoop
+
+   /*
+    * Replays durable entries into the database until the journal is closed
+    * and drained, backing off while the DBMS is unavailable.
+    **/
+   private void drainLoop(){
+      Cafe.beginOperation("OrderJournal");
+      long backoff = 0;
+      while (true){
+         List<Entry> batch = new ArrayList<Entry>();
+         synchronized (this){
+            long retryAt = System.currentTimeMillis() + backoff;
+            while (!closed && (drainedPos >= syncedPos || System.currentTimeMillis() < retryAt)){
+               try{
+                  wait(Math.max(1, Math.min(1000, retryAt - System.currentTimeMillis())));
+               }catch (InterruptedException e){
+                  return;
+               }//end try
+            }//end while
+            int pos = drainedPos;
+            while (pos < syncedPos && batch.size() < MAX_BATCH){
+               Entry e = read(pos);
+               if (e == null)
+                  break;
+               batch.add(e);
+               pos = e.end;
+            }//end while
+            if (batch.isEmpty())
+               return;
+         }//end synchronized
+
+         int applied = replay(batch);
+         synchronized (this){
+            if (applied > 0){
+               drainedPos = batch.get(applied - 1).end;
+               map.putLong(8, drainedPos);
+               drained += applied;
+               compact();
+               notifyAll();
+            }//end if
+         }//end synchronized
+         if (applied > 0)
+            esql.invalidate("Orders");
+         if (applied < batch.size()){
+            // the DBMS is unavailable: retry later, or give up when closing
+            if (closed)
+               return;
+            backoff = Math.min(MAX_BACKOFF_MILLIS, Math.max(500, backoff * 2));
+         }else{
+            backoff = 0;
+         }//end if
+      }//end while
+   }//end drainLoop
+
+   /*
+    * Writes a batch of entries to the database in one transaction.  When
+    * that fails, the entries are retried one at a time and the ones the
+    * database rejects are set aside (see rejects).  Nothing is retried while
+    * the database is unreachable.
+    * @return the number of leading entries done with
+    **/
+   private int replay(List<Entry> batch){
+      SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for (Entry e : batch)
+         rows.add(Arrays.asList(e.key, e.login, e.item,
+            format.format(new Date(e.received)), e.key));
+      try{
+         Cafe.await(esql.executeBatchAsync(REPLAY_SQL, rows));
+         waiting = false;
+         return batch.size();
+      }catch (SQLException batchError){
+         if (isTransient(batchError))
+            return unavailable(batch.size(), batchError);
+         boolean succeeded = false;
+         for (int i = 0; i < rows.size(); ++i){
+            try{
+               Cafe.await(esql.executeBatchAsync(REPLAY_SQL, rows.subList(i, i + 1)));
+               succeeded = true;
+               lastRejection = null;
+               sameRejections = 0;
+            }catch (SQLException e){
+               if (!rejects(e, succeeded) || !deadLetter(batch.get(i), e))
+                  return unavailable(batch.size() - i, e);
+            }//end try
+         }//end for
+         waiting = false;
+         return rows.size();
+      }//end try
+   }//end replay
+
+   /*
+    * Tells whether the failure of one entry is the entry's own, so that it
+    * can be set aside.  Errors of the database as a whole (unreachable,
+    * missing functions or tables, permissions) fail every entry alike and
+    * must not empty the journal into the .failed file: they only count as a
+    * rejection when another entry of the batch went through, and a run of
+    * rejections for the same reason stops the drainer all the same.
+    **/
+   private boolean rejects(SQLException e, boolean succeeded){
+      if (isTransient(e))
+         return false;
+      String reason = reason(e);
+      if (!succeeded && !isEntryError(e))
+         return false;
+      if (!reason.equals(lastRejection)){
+         lastRejection = reason;
+         sameRejections = 0;
+      }//end if
+      if (sameRejections >= MAX_SAME_REJECTIONS)
+         return false;
+      ++sameRejections;
+      return true;
+   }//end rejects
+
+   /*
+    * @return true when the server's error names the data of the statement:
+    * a violated constraint or a value it cannot take
+    **/
+   static boolean isEntryError(SQLException e){
+      String message = reason(e).toLowerCase(Locale.ENGLISH);
+      return message.contains("violates") || message.contains("invalid input") ||
+         message.contains("value too long") || message.contains("out of range") ||
+         message.contains("null value") || message.contains("invalid byte sequence");
+   }//end isEntryError
+
+   /*
+    * Reports, once per outage, that entries are waiting for the database.
+    * @return 0, the number of entries done with
+    **/
+   private int unavailable(int pending, SQLException e){
+      if (!waiting)
+         System.err.println("Order journal: " + pending +
+            " order(s) waiting for the database: " + reason(e));
+      waiting = true;
+      return 0;
+   }//end unavailable
+
+   /*
+    * Sets aside an entry the database rejected, with the reason.
+    * @return false when it could not be written down and must be kept
+    **/
+   private boolean deadLetter(Entry entry, SQLException e){
+      String reason = reason(e).replace('\n', ' ');
+      try{
+         PrintWriter out = new PrintWriter(new FileWriter(deadLetters, true));
+         try{
+            out.println(entry.key + ";" + entry.login + ";" + entry.item + ";" +
+               new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date(entry.received)) +
+               ";" + reason);
+         }finally{
+            out.close();
+         }//end try
+         if (out.checkError())
+            return false;
+      }catch (IOException io){
+         return false;
+      }//end try
+      synchronized (this){
+         ++deadLettered;
+      }//end synchronized
+      System.err.println("Order journal: order " + entry.key + " rejected by the database, set aside in " +
+         deadLetters.getPath() + ": " + reason);
+      return true;
+   }//end deadLetter
+
+   /*
+    * @return true when e means the database could not be reached or did not
+    * answer in time, so the same statement may succeed later.  The pg73
+    * driver sets no SQLState, so its connection errors are told apart by
+    * their message; the server's own error for a batch entry is chained
+    * through getNextException.
+    **/
+   static boolean isTransient(SQLException e){
+      if (ConnectionPool.isBroken(e))
+         return true;
+      for (SQLException x = e; x != null; x = x.getNextException()){
+         if (x instanceof SQLTimeoutException)
+            return true;
+         String state = x.getSQLState();
+         if (state != null && (state.startsWith("53") || state.startsWith("57P") ||
+             state.equals("40001") || state.equals("40P01")))
+            return true;
+         String message = x.getMessage() == null ? "" : x.getMessage().toLowerCase(Locale.ENGLISH);
+         if (message.contains("fatal") || message.contains("deadlock") ||
+             message.contains("could not serialize") || message.contains("interrupted"))
+            return true;
+      }//end for
+      return false;
+   }//end isTransient
+
+   // the server's message for e, rather than the batch wrapper's
+   private static String reason(SQLException e){
+      SQLException x = e;
+      while (x.getNextException() != null)
+         x = x.getNextException();
+      return String.valueOf(x.getMessage()).trim();
+   }//end reason
+
+   // number of valid entries between two offsets
+   private int countEntries(int from, int to){
+      int count = 0;
+      for (Entry e = read(from); e != null && e.end <= to; e = read(e.end))
+         ++count;
+      return count;
+   }//end countEntries
+
+   /*
+    * Restarts appends after the header once every entry is drained and the
+    * file is more than half full.  Bumping the generation first makes the
+    * old records invisible to the next open.
+    **/
+   private void compact(){
+      if (drainedPos < writePos || syncedPos < writePos || writePos < capacity / 2)
+         return;
+      ++generation;
+      map.putInt(4, generation);
+      map.putLong(8, HEADER);
+      map.force();
+      writePos = syncedPos = drainedPos = HEADER;
+   }//end compact
+
+   /*
+    * Reads the record at pos, or null when there is no valid record of the
+    * current generation there.
+    **/
+   private Entry read(int pos){
+      if (pos + RECORD_HEADER > capacity)
+         return null;
+      int length = map.getInt(pos);
+      if (length <= 0 || pos + RECORD_HEADER + length > capacity
+          || map.getInt(pos + 4) != generation)
+         return null;
+      byte[] payload = new byte[length];
+      for (int i = 0; i < length; ++i)
+         payload[i] = map.get(pos + RECORD_HEADER + i);
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+      if ((int) crc.getValue() != map.getInt(pos + 8))
+         return null;
+      try{
+         DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+         return new Entry(in.readUTF(), in.readUTF(), in.readUTF(), in.readLong(),
+            pos + RECORD_HEADER + length);
+      }catch (IOException e){
+         return null;
+      }//end try
+   }//end read
+
+   /*
+    * @return orders received, replayed into the database and still pending
+    **/
+   public synchronized String stats(){
+      String stats = String.format("Order journal: %d order(s) received, %d written to the database, %d pending",
+         received, drained - deadLettered, received - drained);
+      if (deadLettered > 0)
+         stats += String.format(", %d rejected (see %s)", deadLettered, deadLetters.getPath());
+      return stats;
+   }//end stats
+
+   /*
+    * Stops taking orders, gives the drainer up to waitMillis to write the
+    * pending ones, and closes the file.  Orders still pending are replayed
+    * the next time the journal is opened.
+    **/
+   public void close(long waitMillis){
+      synchronized (this){
+         closed = true;
+         notifyAll();
+      }//end synchronized
+      try{
+         flusher.join(waitMillis);
+         drainer.join(waitMillis);
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }//end try
+      synchronized (this){
+         map.force();
+      }//end synchronized
+      try{
+         lock.release();
+         file.close();
+      }catch (IOException e){
+         // ignored.
+      }//end try
+   }//end close
+
+}//end OrderJournal
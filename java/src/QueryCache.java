@@ -0,0 +1,323 @@
+/*
+ * Query result cache for the Cafe program
+ * =======================================
+ *
+ * Results of heavy queries that every terminal repeats (the staff view of
+ * unpaid orders) are shared through the SharedResult table, so a dozen
+ * terminals asking for the same view run the query about once per time to
+ * live instead of once each:
+ *  - a terminal first looks the result up by key, a single indexed read;
+ *  - on a miss it takes a Postgres advisory lock on the key, looks again
+ *    (another terminal may have just refreshed it) and otherwise runs the
+ *    query and stores the result, so concurrent misses across terminals
+ *    run the query only once;
+ *  - a statement trigger on each table a result reads deletes the result
+ *    whenever any terminal (or batch mode, or the order journal) writes
+ *    that table.  A write that races a refresh is bounded by the time to
+ *    live.
+ * See SharedResult in sql/src/create_tables.sql and drop_shared_results in
+ * sql/src/triggers.sql.  This class builds the keys and the stored text;
+ * Cafe runs the statements.
+ *
+ * Each process also keeps the last result of every query it ran, in memory
+ * and least recently used first out, so a query that misses its deadline
+ * can still show something.  Writers call invalidate with the table they
+ * changed to drop the local copies known to be outdated.
+ */
+
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class QueryCache {
+
+   /*
+    * A query result: column names, rows and the tables it reads.
+    **/
+   public static class Result {
+      public final List<String> columns;
+      public final List<List<String>> rows;
+      final String[] tables;
+      final long loadedAt;
+      // age of the result when it was served, 0 when freshly loaded
+      long servedAge = 0;
+
+      public Result(List<String> columns, List<List<String>> rows, String[] tables){
+         this(columns, rows, tables, System.currentTimeMillis());
+      }
+
+      Result(List<String> columns, List<List<String>> rows, String[] tables, long loadedAt){
+         this.columns = columns;
+         this.rows = rows;
+         this.tables = tables;
+         this.loadedAt = loadedAt;
+      }
+
+      /*
+       * @return how old the result was, in milliseconds, when it was served
+       **/
+      public long age(){
+         return servedAge;
+      }
+
+      boolean reads(String table){
+         for (String t : tables)
+            if (t.equalsIgnoreCase(table))
+               return true;
+         return false;
+      }
+   }//end Result
+
+   private final long ttlMillis;
+   private final int maxEntries;
+
+   // last result of each query run here, in least recently used order,
+   // guarded by this
+   private final LinkedHashMap<String, Result> entries;
+
+   private long hits = 0;
+   private long waits = 0;
+   private long refreshes = 0;
+   private long evictions = 0;
+   private long invalidations = 0;
+   private long totalHitAge = 0;
+   private long maxHitAge = 0;
+
+   public QueryCache(long ttlMillis, final int maxEntries){
+      this.ttlMillis = ttlMillis;
+      this.maxEntries = maxEntries;
+      this.entries = new LinkedHashMap<String, Result>(16, 0.75f, true){
+         protected boolean removeEldestEntry(Map.Entry<String, Result> eldest){
+            if (size() > QueryCache.this.maxEntries){
+               ++evictions;
+               return true;
+            }//end if
+            return false;
+         }
+      };
+   }
+
+   /*
+    * @return how long a shared result is served after it was loaded
+    **/
+   public long ttlMillis(){
+      return ttlMillis;
+   }
+
+   /*
+    * Keeps the result just obtained for sql and params, so getStale can
+    * serve it later.
+    **/
+   public synchronized void remember(String sql, List<String> params, Result result){
+      entries.put(key(sql, params), result);
+   }//end remember
+
+   /*
+    * Returns the last result kept for sql and params however old it is, for
+    * use when the query cannot be run in time.  Null when none is kept.
+    **/
+   public synchronized Result getStale(String sql, List<String> params){
+      Result cached = entries.get(key(sql, params));
+      return cached == null ? null : served(cached, System.currentTimeMillis() - cached.loadedAt);
+   }//end getStale
+
+   /*
+    * Drops every result kept here that reads table.
+    **/
+   public synchronized void invalidate(String table){
+      Iterator<Result> it = entries.values().iterator();
+      while (it.hasNext()){
+         if (it.next().reads(table)){
+            it.remove();
+            ++invalidations;
+         }//end if
+      }//end while
+   }//end invalidate
+
+   // a shared result was served as found
+   synchronized void hit(long age){
+      ++hits;
+      totalHitAge += age;
+      maxHitAge = Math.max(maxHitAge, age);
+   }
+
+   // a shared result was loaded by another terminal while this one waited
+   synchronized void waited(){
+      ++waits;
+   }
+
+   // this terminal ran the query and shared the result
+   synchronized void refreshed(){
+      ++refreshes;
+   }
+
+   /*
+    * @return shared hits, refreshes, the age of served results and the
+    * results kept for fallback
+    **/
+   public synchronized String stats(){
+      long lookups = hits + waits + refreshes;
+      double ratio = lookups == 0 ? 0 : 100.0 * (hits + waits) / lookups;
+      double avgAge = hits == 0 ? 0 : totalHitAge / 1000.0 / hits;
+      return String.format(
+         "Query cache: %d shared hit(s), %d loaded by another terminal while waiting, %d run here " +
+         "(%.1f%% served without running the query); hits were %.1f s old on average, %.1f s at most; " +
+         "%d kept for fallback, %d evicted, %d invalidated",
+         hits, waits, refreshes, ratio, avgAge, maxHitAge / 1000.0,
+         entries.size(), evictions, invalidations);
+   }//end stats
+
+   public synchronized boolean isUsed(){
+      return hits + waits + refreshes > 0;
+   }
+
+   private static Result served(Result cached, long age){
+      Result copy = new Result(cached.columns, cached.rows, cached.tables, cached.loadedAt);
+      copy.servedAge = age;
+      return copy;
+   }
+
+   /*
+    * @return the SharedResult key for sql and params: the MD5 of their
+    * normalized form, in hex
+    **/
+   static String sharedKey(String sql, List<String> params){
+      try{
+         byte[] digest = MessageDigest.getInstance("MD5").digest(
+            key(sql, params).getBytes(Charset.forName("UTF-8")));
+         return String.format("%032x", new BigInteger(1, digest));
+      }catch (NoSuchAlgorithmException e){
+         throw new IllegalStateException(e);
+      }//end try
+   }//end sharedKey
+
+   /*
+    * @return the advisory lock id for a shared key: its first 64 bits
+    **/
+   static long lockId(String sharedKey){
+      return new BigInteger(sharedKey.substring(0, 16), 16).longValue();
+   }//end lockId
+
+   /*
+    * @return the tables a result reads as stored in SharedResult.readsTables,
+    * e.g. ",orders,", matched by the trigger against the written table
+    **/
+   static String readsTables(String[] tables){
+      StringBuilder reads = new StringBuilder(",");
+      for (String t : tables)
+         reads.append(t.toLowerCase()).append(',');
+      return reads.toString();
+   }//end readsTables
+
+   /*
+    * Encodes a result as text: one line of column names, then one line per
+    * row, with fields separated by tabs.  '%', tab, line breaks, quotes,
+    * backslashes and NUL are written as %XX and a null value as %N, so the
+    * text holds no character the pg73 driver's literal quoting could alter.
+    **/
+   static String encode(Result result){
+      StringBuilder text = new StringBuilder();
+      encodeLine(text, result.columns);
+      for (List<String> row : result.rows)
+         encodeLine(text, row);
+      return text.toString();
+   }//end encode
+
+   private static void encodeLine(StringBuilder text, List<String> values){
+      for (int i = 0; i < values.size(); ++i){
+         if (i > 0)
+            text.append('\t');
+         String value = values.get(i);
+         if (value == null){
+            text.append("%N");
+            continue;
+         }//end if
+         for (int j = 0; j < value.length(); ++j){
+            char c = value.charAt(j);
+            if (c == '%' || c == '\t' || c == '\n' || c == '\r' || c == '\'' || c == '\\' || c == 0)
+               text.append(String.format("%%%02X", (int) c));
+            else
+               text.append(c);
+         }//end for
+      }//end for
+      text.append('\n');
+   }//end encodeLine
+
+   /*
+    * Decodes text made by encode into a result that was ageMillis old.
+    **/
+   static Result decode(String text, String[] tables, long ageMillis){
+      List<List<String>> lines = new ArrayList<List<String>>();
+      int start = 0;
+      while (start < text.length()){
+         int end = text.indexOf('\n', start);
+         if (end < 0)
+            end = text.length();
+         List<String> values = new ArrayList<String>();
+         for (String field : text.substring(start, end).split("\t", -1))
+            values.add(decodeValue(field));
+         lines.add(values);
+         start = end + 1;
+      }//end while
+      List<String> columns = lines.isEmpty() ? Arrays.<String>asList() : lines.get(0);
+      List<List<String>> rows = lines.isEmpty() ? lines : lines.subList(1, lines.size());
+      Result result = new Result(columns, new ArrayList<List<String>>(rows), tables,
+         System.currentTimeMillis() - ageMillis);
+      result.servedAge = ageMillis;
+      return result;
+   }//end decode
+
+   private static String decodeValue(String field){
+      if (field.equals("%N"))
+         return null;
+      if (field.indexOf('%') < 0)
+         return field;
+      StringBuilder value = new StringBuilder(field.length());
+      for (int i = 0; i < field.length(); ++i){
+         char c = field.charAt(i);
+         if (c == '%' && i + 2 < field.length()){
+            value.append((char) Integer.parseInt(field.substring(i + 1, i + 3), 16));
+            i += 2;
+         }else{
+            value.append(c);
+         }//end if
+      }//end for
+      return value.toString();
+   }//end decodeValue
+
+   /*
+    * Builds the cache key: the SQL with whitespace collapsed and keywords
+    * lower-cased outside of quoted literals, followed by the parameters.
+    **/
+   static String key(String sql, List<String> params){
+      StringBuilder key = new StringBuilder(sql.length() + 16);
+      boolean quoted = false;
+      boolean space = false;
+      for (int i = 0; i < sql.length(); ++i){
+         char c = sql.charAt(i);
+         if (c == '\''){
+            quoted = !quoted;
+         }else if (!quoted && Character.isWhitespace(c)){
+            space = true;
+            continue;
+         }//end if
+         if (space && key.length() > 0)
+            key.append(' ');
+         space = false;
+         key.append(quoted || c == '\'' ? c : Character.toLowerCase(c));
+      }//end for
+      while (key.length() > 0 && (key.charAt(key.length() - 1) == ';' || key.charAt(key.length() - 1) == ' '))
+         key.setLength(key.length() - 1);
+      for (String p : params)
+         key.append('\u0000').append(p);
+      return key.toString();
+   }//end key
+
+}//end QueryCache
@@ -0,0 +1,92 @@
+/*
+ * Statement outcome and latency metrics for the Cafe program
+ * ==========================================================
+ *
+ * Counts how every statement ended (completed, failed, deadline exceeded,
+ * lock wait exceeded, cancelled from the terminal) per operation, and keeps
+ * the latencies of the most recent statements to report percentiles.
+ */
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class QueryMetrics {
+
+   public static final int OK = 0;
+   public static final int ERROR = 1;
+   public static final int TIMEOUT = 2;
+   public static final int LOCK_TIMEOUT = 3;
+   public static final int CANCELLED = 4;
+   public static final int FALLBACK = 5;
+
+   private static final String[] OUTCOMES =
+      {"ok", "failed", "timed out", "lock timed out", "cancelled", "served stale"};
+
+   // latencies of the last SAMPLES statements, in microseconds
+   private static final int SAMPLES = 8192;
+   private final long[] latencies = new long[SAMPLES];
+   private long recorded = 0;
+
+   // outcome counts per operation name
+   private final Map<String, long[]> counts = new TreeMap<String, long[]>();
+
+   /*
+    * Records one statement of operation that ended with outcome after
+    * elapsedNanos.
+    **/
+   public synchronized void record(String operation, int outcome, long elapsedNanos){
+      count(operation, outcome);
+      latencies[(int) (recorded % SAMPLES)] = elapsedNanos / 1000;
+      ++recorded;
+   }//end record
+
+   /*
+    * Records an outcome that did not run a statement, e.g. a stale result
+    * served after a deadline was exceeded.
+    **/
+   public synchronized void count(String operation, int outcome){
+      long[] c = counts.get(operation);
+      if (c == null){
+         c = new long[OUTCOMES.length];
+         counts.put(operation, c);
+      }//end if
+      ++c[outcome];
+   }//end count
+
+   public synchronized boolean isUsed(){
+      return recorded > 0;
+   }
+
+   /*
+    * @return outcome counts per operation and latency percentiles
+    **/
+   public synchronized String report(){
+      StringBuilder out = new StringBuilder("Statements:");
+      for (Map.Entry<String, long[]> e : counts.entrySet()){
+         out.append("\n   ").append(e.getKey()).append(':');
+         long[] c = e.getValue();
+         for (int i = 0; i < c.length; ++i)
+            if (c[i] > 0)
+               out.append(' ').append(c[i]).append(' ').append(OUTCOMES[i]).append(',');
+         out.setLength(out.length() - 1);
+      }//end for
+
+      int n = (int) Math.min(recorded, SAMPLES);
+      if (n > 0){
+         long[] sorted = Arrays.copyOf(latencies, n);
+         Arrays.sort(sorted);
+         out.append(String.format(
+            "\n   latency over the last %d: p50 %.1f ms, p99 %.1f ms, p999 %.1f ms, max %.1f ms",
+            n, percentile(sorted, 0.50), percentile(sorted, 0.99),
+            percentile(sorted, 0.999), sorted[n - 1] / 1000.0));
+      }//end if
+      return out.toString();
+   }//end report
+
+   private static double percentile(long[] sorted, double p){
+      int i = (int) Math.ceil(p * sorted.length) - 1;
+      return sorted[Math.max(0, i)] / 1000.0;
+   }
+
+}//end QueryMetrics
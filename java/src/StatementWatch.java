@@ -0,0 +1,214 @@
+/*
+ * Statement deadlines and cancellation for the Cafe program
+ * =========================================================
+ *
+ * Every statement the program sends is watched from the moment it starts.
+ * The DBMS enforces the deadline through statement_timeout; the watch also
+ * cancels the statement itself shortly after the deadline in case the
+ * server did not (or the driver ignores setQueryTimeout), and lets Ctrl-C
+ * cancel whatever is running instead of freezing the terminal.
+ */
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+public class StatementWatch {
+
+   // time given to the server to enforce the deadline before the client does
+   static final long GRACE_MILLIS = 500;
+
+   private static final ScheduledThreadPoolExecutor timer =
+      new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+         public Thread newThread(Runnable r){
+            Thread t = new Thread(r, "statement-deadlines");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+   static {
+      timer.setRemoveOnCancelPolicy(true);
+   }
+
+   // statements currently running; Ctrl-C cancels the foreground ones
+   private static final Set<StatementWatch> running =
+      Collections.synchronizedSet(new HashSet<StatementWatch>());
+
+   // thread the user is waiting on, set by installInterruptHandler
+   private static volatile Thread foreground = null;
+
+   // thread each statement runs on behalf of: itself, or for pooled work
+   // the thread that submitted it
+   private static final ThreadLocal<Thread> owner = new ThreadLocal<Thread>() {
+      protected Thread initialValue(){ return Thread.currentThread(); }
+   };
+
+   private final Statement stmt;
+   private final String operation;
+   private final QueryMetrics metrics;
+   private final Thread ownerThread = owner.get();
+   private final long start = System.nanoTime();
+   private final ScheduledFuture<?> deadline;
+   private volatile boolean expired = false;
+   private volatile boolean cancelled = false;
+
+   private StatementWatch(Statement stmt, String operation, long timeoutMillis, QueryMetrics metrics){
+      this.stmt = stmt;
+      this.operation = operation;
+      this.metrics = metrics;
+      this.deadline = timeoutMillis <= 0 ? null : timer.schedule(new Runnable() {
+         public void run(){
+            expired = true;
+            cancelStatement();
+         }
+      }, timeoutMillis + GRACE_MILLIS, TimeUnit.MILLISECONDS);
+   }
+
+   /*
+    * Starts watching stmt, which is about to run as part of operation and
+    * must finish within timeoutMillis (0 for no deadline).
+    **/
+   public static StatementWatch start(Statement stmt, String operation, long timeoutMillis, QueryMetrics metrics) throws SQLException {
+      if (timeoutMillis > 0)
+         stmt.setQueryTimeout((int) Math.max(1, (timeoutMillis + 999) / 1000));
+      StatementWatch watch = new StatementWatch(stmt, operation, timeoutMillis, metrics);
+      running.add(watch);
+      return watch;
+   }//end start
+
+   /*
+    * Stops watching a statement that completed.
+    **/
+   public void done(){
+      if (stop())
+         metrics.record(operation, QueryMetrics.OK, System.nanoTime() - start);
+   }//end done
+
+   /*
+    * Stops watching a statement that failed with e, records why it failed
+    * and returns the exception to throw: a SQLTimeoutException when the
+    * deadline or lock timeout was exceeded, e itself otherwise.
+    **/
+   public SQLException fail(SQLException e){
+      String message = e.getMessage() == null ? "" : e.getMessage().toLowerCase();
+      int outcome;
+      SQLException thrown = e;
+      if (message.contains("lock timeout") || "55P03".equals(e.getSQLState())){
+         outcome = QueryMetrics.LOCK_TIMEOUT;
+         thrown = new SQLTimeoutException("Lock wait exceeded the deadline for " + operation, "55P03", e);
+      }else if (cancelled){
+         outcome = QueryMetrics.CANCELLED;
+         thrown = new SQLException("Cancelled", "57014", e);
+      }else if (expired || message.contains("statement timeout")){
+         outcome = QueryMetrics.TIMEOUT;
+         thrown = new SQLTimeoutException("Deadline exceeded for " + operation, "57014", e);
+      }else{
+         outcome = QueryMetrics.ERROR;
+      }//end if
+      if (stop())
+         metrics.record(operation, outcome, System.nanoTime() - start);
+      return thrown;
+   }//end fail
+
+   private boolean stop(){
+      if (deadline != null)
+         deadline.cancel(false);
+      return running.remove(this);
+   }//end stop
+
+   private void cancelStatement(){
+      try{
+         stmt.cancel();
+      }catch (Exception e){
+         // ignored, the statement already finished or cannot be cancelled.
+      }//end try
+   }//end cancelStatement
+
+   /*
+    * @return true when e is the exception fail() returns for a statement
+    * cancelled by Ctrl-C, as opposed to one that ran past its deadline
+    **/
+   public static boolean isCancellation(SQLException e){
+      return "57014".equals(e.getSQLState()) && !(e instanceof SQLTimeoutException);
+   }//end isCancellation
+
+   /*
+    * @return the thread the current thread's statements run on behalf of
+    **/
+   public static Thread owner(){
+      return owner.get();
+   }//end owner
+
+   /*
+    * Makes the statements the current thread runs from now on belong to
+    * thread, e.g. a pool thread running work submitted by thread.
+    **/
+   public static void runOnBehalfOf(Thread thread){
+      owner.set(thread);
+   }//end runOnBehalfOf
+
+   /*
+    * Cancels the statements running on behalf of the foreground thread,
+    * leaving background work (journal replay, directory reloads) alone.
+    * @return the number of statements cancelled
+    **/
+   public static int cancelForeground(){
+      StatementWatch[] watches;
+      synchronized (running){
+         watches = running.toArray(new StatementWatch[running.size()]);
+      }//end synchronized
+      int count = 0;
+      for (StatementWatch w : watches){
+         if (w.ownerThread != foreground)
+            continue;
+         w.cancelled = true;
+         w.cancelStatement();
+         ++count;
+      }//end for
+      return count;
+   }//end cancelForeground
+
+   /*
+    * Makes Ctrl-C cancel the statements the calling thread is waiting on,
+    * falling back to the usual exit when none is running.  Uses sun.misc.Signal when the JVM has it;
+    * otherwise Ctrl-C keeps its default behaviour.
+    **/
+   public static void installInterruptHandler(){
+      foreground = Thread.currentThread();
+      try{
+         final Class<?> signalClass = Class.forName("sun.misc.Signal");
+         final Class<?> handlerClass = Class.forName("sun.misc.SignalHandler");
+         Object signal = signalClass.getConstructor(String.class).newInstance("INT");
+         Object handler = Proxy.newProxyInstance(handlerClass.getClassLoader(),
+            new Class<?>[] { handlerClass }, new InvocationHandler() {
+               public Object invoke(Object proxy, Method method, Object[] args){
+                  if (method.getName().equals("hashCode"))
+                     return System.identityHashCode(proxy);
+                  if (method.getName().equals("equals"))
+                     return proxy == args[0];
+                  if (!method.getName().equals("handle"))
+                     return "interrupt handler";
+                  if (cancelForeground() > 0)
+                     System.out.println("\nCancelling...");
+                  else
+                     System.exit(130);
+                  return null;
+               }
+            });
+         signalClass.getMethod("handle", signalClass, handlerClass).invoke(null, signal, handler);
+      }catch (Exception e){
+         // no signal support, Ctrl-C exits as before.
+      }//end try
+   }//end installInterruptHandler
+
+}//end StatementWatch
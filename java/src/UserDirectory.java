@@ -0,0 +1,557 @@
+/*
+ * In-memory directory of Cafe users
+ * =================================
+ *
+ * Answers "is this login / phone number taken?" and "what type is this
+ * user?" without a round trip, so LogIn can turn away unknown logins and
+ * CreateUser can turn away duplicates before touching the DBMS.
+ *
+ * Logins and phone numbers are stored as 64-bit hashes only:
+ *  - a Bloom filter over both, checked first, which rules out almost every
+ *    unknown value from a few cache lines;
+ *  - an open addressing table from login hash to user type and phone hash;
+ *  - an open addressing set of phone hashes.
+ * That is about 40 bytes per user, whatever the length of the values.
+ *
+ * The directory is loaded from Users at startup and kept current by the
+ * screens that change users.  Changes made from other terminals are read
+ * from UserChange, a log filled by a trigger on Users (see sql/src), which
+ * is polled for the rows added since the last poll: an indexed read of a
+ * few rows rather than a scan of Users.  Each poll also reads the rows of
+ * the last minute again, in order, so a change whose transaction committed
+ * after a later one is not missed; applying a change twice is harmless.
+ * Users is only read again when the log was out of reach for longer than
+ * it keeps changes, or, without the log, every reload interval.
+ *
+ * Loads read Users in pages ordered by login and hash each page as it
+ * arrives, so a reload only ever holds one page of rows on top of the
+ * tables.
+ */
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+public class UserDirectory {
+
+   static final byte CUSTOMER = 1;
+   static final byte EMPLOYEE = 2;
+   static final byte MANAGER = 3;
+   static final String[] TYPES = {null, "Customer", "Employee", "Manager"};
+
+   // users read per round trip while loading
+   static final int PAGE = 5000;
+   static final String COUNT_QUERY = "SELECT count(*) FROM USERS";
+   static final String FIRST_PAGE =
+      "SELECT login, phoneNum, type FROM USERS ORDER BY login LIMIT " + PAGE;
+   static final String NEXT_PAGE =
+      "SELECT login, phoneNum, type FROM USERS WHERE login > ? ORDER BY login LIMIT " + PAGE;
+
+   // the change log: a login removed or renamed (oldLogin) and the login,
+   // phone number and type it has now (login, unless deleted)
+   static final String LAST_CHANGE = "SELECT COALESCE(max(changeId), 0) FROM UserChange";
+   static final String CHANGES =
+      "SELECT changeId, oldLogin, login, phoneNum, type FROM UserChange " +
+      "WHERE changeId > ? OR changed > now() - interval '60 seconds' ORDER BY changeId";
+   // how long the log keeps changes, less a margin (see sql/src/triggers.sql)
+   static final long LOG_KEPT_MILLIS = 23 * 3600 * 1000L;
+
+   // Bloom filter bits per value and probes per lookup, ~1% false positives
+   static final int BLOOM_BITS = 10;
+   static final int BLOOM_PROBES = 7;
+
+   // hash seeds that keep logins and phone numbers apart
+   static final long LOGIN_SEED = 0x9E3779B97F4A7C15L;
+   static final long PHONE_SEED = 0xC2B2AE3D27D4EB4FL;
+
+   /*
+    * The hash tables and filter; replaced as a whole on reload.
+    **/
+   private static class Tables {
+      long[] loginKeys;
+      byte[] types;
+      long[] phoneOf;
+      int logins = 0;
+      long[] phoneKeys;
+      int phones = 0;
+      long[] bloom;
+      // values the filter was sized for; it is rebuilt beyond that
+      int bloomCapacity;
+
+      Tables(int expected){
+         int slots = tableSize(expected);
+         loginKeys = new long[slots];
+         types = new byte[slots];
+         phoneOf = new long[slots];
+         phoneKeys = new long[slots];
+         sizeBloom(Math.max(1024, expected * 2));
+      }
+
+      void sizeBloom(int users){
+         bloomCapacity = users;
+         // two values (login and phone) per user
+         bloom = new long[(int) Math.max(1, (2L * users * BLOOM_BITS + 63) / 64)];
+         for (long h : loginKeys)
+            if (h != 0) bloomAdd(h);
+         for (long h : phoneKeys)
+            if (h != 0) bloomAdd(h);
+      }
+
+      void bloomAdd(long h){
+         long bits = (long) bloom.length * 64;
+         int h1 = (int) h;
+         int h2 = (int) (h >>> 32) | 1;
+         for (int i = 0; i < BLOOM_PROBES; ++i){
+            long bit = ((h1 + (long) i * h2) & 0x7FFFFFFFFFFFFFFFL) % bits;
+            bloom[(int) (bit >>> 6)] |= 1L << bit;
+         }//end for
+      }
+
+      boolean bloomHas(long h){
+         long bits = (long) bloom.length * 64;
+         int h1 = (int) h;
+         int h2 = (int) (h >>> 32) | 1;
+         for (int i = 0; i < BLOOM_PROBES; ++i){
+            long bit = ((h1 + (long) i * h2) & 0x7FFFFFFFFFFFFFFFL) % bits;
+            if ((bloom[(int) (bit >>> 6)] & (1L << bit)) == 0)
+               return false;
+         }//end for
+         return true;
+      }
+
+      // slot holding h in keys, or the empty slot where it would go
+      static int slot(long[] keys, long h){
+         int i = (int) ((h >>> 1) % keys.length);
+         while (keys[i] != 0 && keys[i] != h)
+            i = next(keys, i);
+         return i;
+      }
+
+      static int next(long[] keys, int i){
+         return i + 1 == keys.length ? 0 : i + 1;
+      }
+
+      int login(long h){
+         int i = slot(loginKeys, h);
+         return loginKeys[i] == h ? i : -1;
+      }
+
+      boolean hasPhone(long h){
+         return phoneKeys[slot(phoneKeys, h)] == h;
+      }
+
+      void putLogin(long h, byte type, long phone){
+         if ((logins + 1) * 4L > loginKeys.length * 3L)
+            growLogins();
+         int i = slot(loginKeys, h);
+         if (loginKeys[i] == 0)
+            ++logins;
+         loginKeys[i] = h;
+         types[i] = type;
+         phoneOf[i] = phone;
+         bloomAdd(h);
+         if (logins > bloomCapacity)
+            sizeBloom(bloomCapacity * 2);
+      }
+
+      void addPhone(long h){
+         if (h == 0 || hasPhone(h))
+            return;
+         if ((phones + 1) * 4L > phoneKeys.length * 3L){
+            long[] old = phoneKeys;
+            phoneKeys = new long[old.length * 2];
+            for (long k : old)
+               if (k != 0) phoneKeys[slot(phoneKeys, k)] = k;
+         }//end if
+         phoneKeys[slot(phoneKeys, h)] = h;
+         ++phones;
+         bloomAdd(h);
+      }
+
+      void removeLogin(long h){
+         int i = slot(loginKeys, h);
+         if (loginKeys[i] != h)
+            return;
+         loginKeys[i] = 0;
+         --logins;
+         // reinsert the following entries so probing still finds them
+         for (int j = next(loginKeys, i); loginKeys[j] != 0; j = next(loginKeys, j)){
+            long k = loginKeys[j];
+            byte t = types[j];
+            long p = phoneOf[j];
+            loginKeys[j] = 0;
+            int to = slot(loginKeys, k);
+            loginKeys[to] = k;
+            types[to] = t;
+            phoneOf[to] = p;
+         }//end for
+      }
+
+      void removePhone(long h){
+         if (h == 0)
+            return;
+         int i = slot(phoneKeys, h);
+         if (phoneKeys[i] != h)
+            return;
+         phoneKeys[i] = 0;
+         --phones;
+         for (int j = next(phoneKeys, i); phoneKeys[j] != 0; j = next(phoneKeys, j)){
+            long k = phoneKeys[j];
+            phoneKeys[j] = 0;
+            phoneKeys[slot(phoneKeys, k)] = k;
+         }//end for
+      }
+
+      private void growLogins(){
+         long[] oldKeys = loginKeys;
+         byte[] oldTypes = types;
+         long[] oldPhones = phoneOf;
+         loginKeys = new long[oldKeys.length * 2];
+         types = new byte[oldKeys.length * 2];
+         phoneOf = new long[oldKeys.length * 2];
+         for (int i = 0; i < oldKeys.length; ++i){
+            if (oldKeys[i] == 0)
+               continue;
+            int to = slot(loginKeys, oldKeys[i]);
+            loginKeys[to] = oldKeys[i];
+            types[to] = oldTypes[i];
+            phoneOf[to] = oldPhones[i];
+         }//end for
+      }
+
+      long bytes(){
+         return loginKeys.length * 8L + types.length + phoneOf.length * 8L
+            + phoneKeys.length * 8L + bloom.length * 8L;
+      }
+
+      // 70% full when loaded, grown once 75% full
+      static int tableSize(int expected){
+         return Math.max(16, (int) (expected * 10L / 7) + 1);
+      }
+   }//end Tables
+
+   /*
+    * A change made while a reload was running, replayed onto its result.
+    **/
+   private interface Change {
+      void apply(Tables t);
+   }
+
+   private final Cafe esql;
+   // all guarded by this
+   private Tables tables;
+   private List<Change> changesDuringReload = null;
+   private long lookups = 0;
+   private long loadMillis = 0;
+   private long changesRead = 0;
+
+   // loading and refresher thread only: the last change read from the log,
+   // or -1 without a log, and when the log or Users was last read
+   private long lastChange = -1;
+   private long lastRead = 0;
+
+   private UserDirectory(Cafe esql){
+      this.esql = esql;
+   }
+
+   /*
+    * Loads every user, then reads the changes made from other terminals
+    * every refreshMillis (0 to never) on a background thread.  Without a
+    * change log in the database, every user is reloaded every reloadMillis
+    * (0 to never) instead.
+    **/
+   public static UserDirectory load(Cafe esql, final long refreshMillis, final long reloadMillis) throws SQLException {
+      final UserDirectory directory = new UserDirectory(esql);
+      directory.openLog();
+      directory.reload();
+      if (refreshMillis > 0){
+         Thread refresher = new Thread(new Runnable() {
+            public void run(){
+               Cafe.beginOperation("UserDirectory");
+               while (true){
+                  try{
+                     Thread.sleep(refreshMillis);
+                     directory.refresh(reloadMillis);
+                  }catch (InterruptedException e){
+                     return;
+                  }catch (SQLException e){
+                     // keep the current directory until the next attempt.
+                  }//end try
+               }//end while
+            }
+         }, "user-directory-refresh");
+         refresher.setDaemon(true);
+         refresher.start();
+      }//end if
+      return directory;
+   }//end load
+
+   /*
+    * Notes where the change log ends, before Users is read, so that no
+    * change made while loading is missed.  Leaves the log unused when the
+    * database has none.
+    **/
+   private void openLog() throws SQLException {
+      try{
+         List<List<String>> last = Cafe.await(esql.executeQueryAndReturnResultAsync(LAST_CHANGE));
+         lastChange = Long.parseLong(last.get(0).get(0).trim());
+      }catch (SQLException e){
+         if (!String.valueOf(e.getMessage()).toLowerCase(Locale.ENGLISH).contains("userchange"))
+            throw e;
+         lastChange = -1;
+         System.err.println("User directory: no change log, users are reloaded instead: " + e.getMessage());
+      }//end try
+   }//end openLog
+
+   /*
+    * Picks up the changes made from other terminals: from the change log,
+    * or by reloading every user when there is no log or it may have dropped
+    * changes not read yet.
+    **/
+   void refresh(long reloadMillis) throws SQLException {
+      long now = System.currentTimeMillis();
+      if (lastChange < 0){
+         if (reloadMillis > 0 && now - lastRead >= reloadMillis)
+            reload();
+         return;
+      }//end if
+      if (now - lastRead > LOG_KEPT_MILLIS){
+         openLog();
+         reload();
+         return;
+      }//end if
+      List<List<String>> rows = Cafe.await(esql.executeQueryAndReturnResultAsync(
+         CHANGES, Arrays.asList(Long.toString(lastChange))));
+      for (List<String> row : rows){
+         lastChange = Math.max(lastChange, Long.parseLong(row.get(0).trim()));
+         record(change(row.get(1), row.get(2), row.get(3), row.get(4)));
+      }//end for
+      synchronized (this){
+         changesRead += rows.size();
+      }//end synchronized
+      lastRead = now;
+   }//end refresh
+
+   /*
+    * Rebuilds the directory from Users, keeping changes made meanwhile.
+    **/
+   void reload() throws SQLException {
+      long start = System.nanoTime();
+      long now = System.currentTimeMillis();
+      synchronized (this){
+         changesDuringReload = new ArrayList<Change>();
+      }//end synchronized
+      try{
+         // size the tables up front, they still grow if users are added meanwhile
+         List<List<String>> count = Cafe.await(esql.executeQueryAndReturnResultAsync(COUNT_QUERY));
+         Tables fresh = new Tables(Integer.parseInt(count.get(0).get(0).trim()));
+         List<List<String>> page = Cafe.await(esql.executeQueryAndReturnResultAsync(FIRST_PAGE));
+         while (true){
+            for (List<String> row : page){
+               long phone = phoneHash(row.get(1));
+               fresh.putLogin(loginHash(row.get(0)), type(row.get(2)), phone);
+               fresh.addPhone(phone);
+            }//end for
+            if (page.size() < PAGE)
+               break;
+            String last = page.get(page.size() - 1).get(0);
+            page = Cafe.await(esql.executeQueryAndReturnResultAsync(NEXT_PAGE, Arrays.asList(last)));
+         }//end while
+         synchronized (this){
+            for (Change c : changesDuringReload)
+               c.apply(fresh);
+            tables = fresh;
+            loadMillis = (System.nanoTime() - start) / 1000000;
+         }//end synchronized
+         lastRead = now;
+      }finally{
+         synchronized (this){
+            changesDuringReload = null;
+         }//end synchronized
+      }//end try
+   }//end reload
+
+   /*
+    * @return false when no user has this login, true when one may have it
+    **/
+   public synchronized boolean knowsLogin(String login){
+      long h = loginHash(login);
+      ++lookups;
+      return tables.bloomHas(h) && tables.login(h) >= 0;
+   }//end knowsLogin
+
+   /*
+    * @return true when a user already has this phone number
+    **/
+   public synchronized boolean knowsPhone(String phone){
+      long h = phoneHash(phone);
+      ++lookups;
+      return h != 0 && tables.bloomHas(h) && tables.hasPhone(h);
+   }//end knowsPhone
+
+   /*
+    * @return the type of the user with this login, or null when unknown
+    **/
+   public synchronized String typeOf(String login){
+      ++lookups;
+      int i = tables.login(loginHash(login));
+      return i < 0 ? null : TYPES[tables.types[i]];
+   }//end typeOf
+
+   /*
+    * Records a new user.
+    **/
+   public void added(String login, String phone, String type){
+      final long l = loginHash(login);
+      final long p = phoneHash(phone);
+      final byte t = type(type);
+      record(new Change() {
+         public void apply(Tables tables){
+            tables.putLogin(l, t, p);
+            tables.addPhone(p);
+         }
+      });
+   }//end added
+
+   /*
+    * Records a user's login change.
+    **/
+   public void renamed(String oldLogin, String newLogin){
+      final long from = loginHash(oldLogin);
+      final long to = loginHash(newLogin);
+      record(new Change() {
+         public void apply(Tables tables){
+            int i = tables.login(from);
+            if (i < 0)
+               return;
+            byte t = tables.types[i];
+            long p = tables.phoneOf[i];
+            tables.removeLogin(from);
+            tables.putLogin(to, t, p);
+         }
+      });
+   }//end renamed
+
+   /*
+    * Records a user's phone number change.
+    **/
+   public void phoneChanged(String login, String phone){
+      final long l = loginHash(login);
+      final long p = phoneHash(phone);
+      record(new Change() {
+         public void apply(Tables tables){
+            int i = tables.login(l);
+            if (i < 0)
+               return;
+            tables.removePhone(tables.phoneOf[i]);
+            tables.phoneOf[i] = p;
+            tables.addPhone(p);
+         }
+      });
+   }//end phoneChanged
+
+   /*
+    * Records a user's type change.
+    **/
+   public void typeChanged(String login, String type){
+      final long l = loginHash(login);
+      final byte t = type(type);
+      record(new Change() {
+         public void apply(Tables tables){
+            int i = tables.login(l);
+            if (i >= 0)
+               tables.types[i] = t;
+         }
+      });
+   }//end typeChanged
+
+   /*
+    * A change read from the log: oldLogin is dropped, then login is given
+    * its phone number and type.  Either may be null.
+    **/
+   private static Change change(String oldLogin, String login, String phone, String type){
+      final long from = oldLogin == null ? 0 : loginHash(oldLogin);
+      final long to = login == null ? 0 : loginHash(login);
+      final long p = phoneHash(phone);
+      final byte t = type(type);
+      return new Change() {
+         public void apply(Tables tables){
+            if (from != 0){
+               int i = tables.login(from);
+               if (i >= 0){
+                  tables.removePhone(tables.phoneOf[i]);
+                  tables.removeLogin(from);
+               }//end if
+            }//end if
+            if (to != 0){
+               int i = tables.login(to);
+               if (i >= 0)
+                  tables.removePhone(tables.phoneOf[i]);
+               tables.putLogin(to, t, p);
+               tables.addPhone(p);
+            }//end if
+         }
+      };
+   }//end change
+
+   private synchronized void record(Change change){
+      change.apply(tables);
+      if (changesDuringReload != null)
+         changesDuringReload.add(change);
+   }//end record
+
+   /*
+    * @return users held, memory used, changes read from the log and lookups
+    * answered without the DBMS
+    **/
+   public synchronized String stats(){
+      long bytes = tables.bytes();
+      return String.format(
+         "User directory: %d user(s) loaded in %d ms, %.1f KB (%.1f bytes/user), %d change(s) read from the log, " +
+         "%d lookup(s) answered without the database",
+         tables.logins, loadMillis, bytes / 1024.0,
+         tables.logins == 0 ? 0 : (double) bytes / tables.logins, changesRead, lookups);
+   }//end stats
+
+   private static byte type(String type){
+      String t = type == null ? "" : type.trim();
+      if (t.equals("Manager")) return MANAGER;
+      if (t.equals("Employee")) return EMPLOYEE;
+      return CUSTOMER;
+   }
+
+   static long loginHash(String login){
+      return hash(login, LOGIN_SEED);
+   }
+
+   // 0 stands for "no phone number"
+   static long phoneHash(String phone){
+      return phone == null ? 0 : hash(phone, PHONE_SEED);
+   }
+
+   /*
+    * 64-bit hash of a CHAR column value: trailing blanks are ignored, as
+    * the DBMS does when comparing CHAR values.  Never returns 0, which
+    * marks an empty slot.
+    **/
+   static long hash(String value, long seed){
+      int end = value.length();
+      while (end > 0 && value.charAt(end - 1) == ' ')
+         --end;
+      long h = seed;
+      for (int i = 0; i < end; ++i){
+         h ^= value.charAt(i);
+         h *= 0x100000001B3L;
+      }//end for
+      // murmur3 finalizer
+      h ^= h >>> 33;
+      h *= 0xFF51AFD7ED558CCDL;
+      h ^= h >>> 33;
+      h *= 0xC4CEB93FE1A85A53L;
+      h ^= h >>> 33;
+      return h == 0 ? 1 : h;
+   }//end hash
+
+}//end UserDirectory
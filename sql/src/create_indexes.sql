@@ -5,3 +5,7 @@ ON orders
 CREATE INDEX index2
 ON ItemStatus
 ( orderid );
+
+CREATE INDEX index3
+ON UserChange
+( changed );
@@ -2,6 +2,9 @@ DROP TABLE Users CASCADE;
 DROP TABLE Orders CASCADE;
 DROP TABLE Menu CASCADE;
 DROP TABLE ItemStatus;
+DROP TABLE OrderIntake;
+DROP TABLE SharedResult;
+DROP TABLE UserChange;
 
 CREATE TABLE Users(
 	login char(50) UNIQUE NOT NULL, 
@@ -36,3 +39,28 @@ CREATE TABLE ItemStatus(
 	PRIMARY KEY(orderid,itemName),
 	FOREIGN KEY(orderid) REFERENCES Orders(orderid),
 	FOREIGN KEY(itemName) REFERENCES Menu(itemName));
+
+CREATE TABLE OrderIntake(
+	intakeKey char(36) UNIQUE NOT NULL,
+	orderid integer NOT NULL,
+	PRIMARY KEY(intakeKey),
+	FOREIGN KEY(orderid) REFERENCES Orders(orderid));
+
+-- query results shared by all terminals (java/src/QueryCache.java)
+CREATE TABLE SharedResult(
+	cacheKey char(32) UNIQUE NOT NULL,
+	readsTables text NOT NULL,
+	loadedAt timestamp NOT NULL,
+	result text NOT NULL,
+	PRIMARY KEY(cacheKey));
+
+-- changes to Users, read by every terminal's user directory
+-- (java/src/UserDirectory.java); filled by log_user_change
+CREATE TABLE UserChange(
+	changeId serial NOT NULL,
+	oldLogin char(50),
+	login char(50),
+	phoneNum char(16),
+	type char(8),
+	changed timestamp NOT NULL DEFAULT now(),
+	PRIMARY KEY(changeId));
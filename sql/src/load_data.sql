@@ -10,6 +10,7 @@ COPY ORDERS
 FROM '/extra/mkim206/project/data/orders.csv'
 WITH DELIMITER ';';
 ALTER SEQUENCE orders_orderid_seq RESTART 87257;
+SELECT setval('orders_orderid_seq', MAX(orderid)) FROM ORDERS HAVING MAX(orderid) >= 87257;
 
 COPY ITEMSTATUS
 FROM '/extra/mkim206/project/data/itemStatus.csv'
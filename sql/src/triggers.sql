@@ -1,5 +1,7 @@
 DROP SEQUENCE IF EXISTS orderid_seq;
 CREATE SEQUENCE orderid_seq  START WITH 86655;
+-- continue after the loaded orders when there are more (java/scripts/generate_data.sh)
+SELECT setval('orderid_seq', MAX(orderid)) FROM Orders HAVING MAX(orderid) >= 86655;
 
 CREATE OR REPLACE LANGUAGE plpgsql;
 CREATE OR REPLACE FUNCTION func_name()
@@ -16,3 +18,61 @@ DROP TRIGGER IF EXISTS t_name ON Orders;
 CREATE TRIGGER t_name BEFORE INSERT 
 ON Orders FOR EACH ROW
 EXECUTE PROCEDURE func_name();
+
+CREATE OR REPLACE FUNCTION intake_order(text, text, timestamp)
+RETURNS integer AS
+$BODY$
+DECLARE
+id integer;
+BEGIN
+INSERT INTO Orders (login, paid, timeStampRecieved, total)
+VALUES ($1, false, $3, COALESCE((SELECT price FROM Menu WHERE itemName = $2), 0));
+id := currval('orderid_seq');
+INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments)
+SELECT id, itemName, $3, 'Hasn''t started', '' FROM Menu WHERE itemName = $2;
+RETURN id;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+-- drop the shared query results that read a table when it is written
+CREATE OR REPLACE FUNCTION drop_shared_results()
+RETURNS "trigger" AS
+$BODY$
+BEGIN
+DELETE FROM SharedResult WHERE readsTables LIKE '%,' || lower(TG_TABLE_NAME) || ',%';
+RETURN NULL;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+DROP TRIGGER IF EXISTS orders_drop_shared_results ON Orders;
+CREATE TRIGGER orders_drop_shared_results AFTER INSERT OR UPDATE OR DELETE
+ON Orders FOR EACH STATEMENT
+EXECUTE PROCEDURE drop_shared_results();
+
+-- log every change to Users for the user directories, keeping a day of it
+CREATE OR REPLACE FUNCTION log_user_change()
+RETURNS "trigger" AS
+$BODY$
+BEGIN
+IF TG_OP = 'INSERT' THEN
+INSERT INTO UserChange (login, phoneNum, type) VALUES (NEW.login, NEW.phoneNum, NEW.type);
+ELSIF TG_OP = 'UPDATE' THEN
+IF NEW.login = OLD.login AND NEW.phoneNum IS NOT DISTINCT FROM OLD.phoneNum AND NEW.type = OLD.type THEN
+RETURN NULL;
+END IF;
+INSERT INTO UserChange (oldLogin, login, phoneNum, type) VALUES (OLD.login, NEW.login, NEW.phoneNum, NEW.type);
+ELSE
+INSERT INTO UserChange (oldLogin) VALUES (OLD.login);
+END IF;
+DELETE FROM UserChange WHERE changed < now() - interval '1 day';
+RETURN NULL;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+DROP TRIGGER IF EXISTS users_log_change ON Users;
+CREATE TRIGGER users_log_change AFTER INSERT OR UPDATE OR DELETE
+ON Users FOR EACH ROW
+EXECUTE PROCEDURE log_user_change();